@@ -0,0 +1,120 @@
+package com.callanna.rxload.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 10000 条记录时把查询结果转换成 DownLoadBean 的速度: 原来每行每列都查找列位置的写法,
+ * 和现在每个查询结果只查找一次的 {@link DownLoadBean#read(Cursor)}. 结果写在 logcat 的 CursorMapperBenchmark 中.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CursorMapperBenchmark {
+    private static final String TAG = "CursorMapperBenchmark";
+    private static final int ROWS = 10000;
+    private static final int ROUNDS = 5;
+    private static final String QUERY = "SELECT * FROM " + Db.DownLoadTable.TABLE_NAME;
+
+    private DBManager dbManager;
+    private DBHelper helper;
+    private final List<String> urls = new ArrayList<>(ROWS);
+
+    @Before
+    public void setUp() {
+        dbManager = DBManager.getSingleton(InstrumentationRegistry.getTargetContext());
+        List<DownLoadBean> beans = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            String url = "http://bench.example.com/map/" + i;
+            urls.add(url);
+            beans.add(new DownLoadBean(url));
+        }
+        dbManager.addAll(beans);
+        helper = new DBHelper(InstrumentationRegistry.getTargetContext());
+    }
+
+    @After
+    public void tearDown() {
+        helper.close();
+        for (String url : urls) {
+            dbManager.delete(url);
+        }
+    }
+
+    @Test
+    public void mapRows() {
+        SQLiteDatabase db = helper.getReadableDatabase();
+        //先各跑一次, 让游标窗口和类加载不算在结果里
+        int rows = map(db, false);
+        assertEquals(rows, map(db, true));
+        assertTrue(rows >= ROWS);
+
+        long legacy = 0;
+        long cached = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            map(db, false);
+            legacy += System.nanoTime() - start;
+            start = System.nanoTime();
+            map(db, true);
+            cached += System.nanoTime() - start;
+        }
+        report("getColumnIndex per field", rows, legacy);
+        report("DownLoadBean.read", rows, cached);
+    }
+
+    private static int map(SQLiteDatabase db, boolean cached) {
+        int rows = 0;
+        Cursor cursor = db.rawQuery(QUERY, null);
+        try {
+            while (cursor.moveToNext()) {
+                DownLoadBean bean = cached ? DownLoadBean.read(cursor) : legacy(cursor);
+                if (bean.getUrl() != null) {
+                    rows++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * 原来 DBManager 中的写法: 每一行的每一列都按名字查找位置
+     */
+    private static DownLoadBean legacy(Cursor cursor) {
+        DownLoadBean downLoadBean = new DownLoadBean(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_URL)));
+        DownLoadStatus downLoadStatus = new DownLoadStatus();
+        downLoadBean.setId(cursor.getInt(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_ID)));
+        downLoadStatus.setStatus(cursor.getInt(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_DOWNLOAD_FLAG)));
+        downLoadStatus.setDownloadSize(cursor.getLong(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_DOWNLOAD_SIZE)));
+        downLoadStatus.setTotalSize(cursor.getLong(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_TOTAL_SIZE)));
+        downLoadBean.setStatus(downLoadStatus);
+        downLoadBean.setSaveName(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_SAVE_NAME)));
+        downLoadBean.setIsSupportRange(cursor.getInt(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_RANGE)) == 1);
+        downLoadBean.setChanged(cursor.getInt(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_CHENGED)) == 1);
+        downLoadBean.setLastModify(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_LastModify)));
+        downLoadBean.setEtag(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_ETAG)));
+        downLoadBean.setDigest(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_DIGEST)));
+        downLoadBean.setSavePath(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_SAVE_PATH)));
+        downLoadBean.setTempPath(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_TEMP_PATH)));
+        downLoadBean.setLmfPath(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_LMDF_PATH)));
+        return downLoadBean;
+    }
+
+    private static void report(String name, int rows, long nanos) {
+        Log.i(TAG, String.format("%s: %d rows, %.0f rows/sec", name, rows, (double) rows * ROUNDS * 1e9 / nanos));
+    }
+}
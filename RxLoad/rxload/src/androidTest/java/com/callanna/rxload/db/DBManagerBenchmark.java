@@ -0,0 +1,75 @@
+package com.callanna.rxload.db;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * 10000 条记录时按 url 更新状态和查询的速度, 结果写在 logcat 的 DBManagerBenchmark 中.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DBManagerBenchmark {
+    private static final String TAG = "DBManagerBenchmark";
+    private static final int ROWS = 10000;
+    private static final int OPS = 2000;
+
+    private DBManager dbManager;
+    private final List<String> urls = new ArrayList<>(ROWS);
+
+    @Before
+    public void setUp() {
+        dbManager = DBManager.getSingleton(InstrumentationRegistry.getTargetContext());
+        List<DownLoadBean> beans = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            String url = "http://bench.example.com/file/" + i;
+            urls.add(url);
+            beans.add(new DownLoadBean(url));
+        }
+        dbManager.addAll(beans);
+    }
+
+    @After
+    public void tearDown() {
+        for (String url : urls) {
+            dbManager.delete(url);
+        }
+    }
+
+    @Test
+    public void updateStatusByUrl() {
+        Random random = new Random(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < OPS; i++) {
+            dbManager.updateStatusByUrl(urls.get(random.nextInt(ROWS)),
+                    i % 2 == 0 ? DownLoadStatus.PAUSED : DownLoadStatus.FAILED);
+        }
+        report("updateStatusByUrl", System.nanoTime() - start);
+    }
+
+    @Test
+    public void searchByUrl() {
+        Random random = new Random(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < OPS; i++) {
+            String url = urls.get(random.nextInt(ROWS));
+            DownLoadBean bean = dbManager.searchByUrl(url);
+            assertNotNull(url, bean);
+        }
+        report("searchByUrl", System.nanoTime() - start);
+    }
+
+    private static void report(String name, long nanos) {
+        Log.i(TAG, String.format("%s: %d rows, %.0f ops/sec", name, ROWS, OPS * 1e9 / nanos));
+    }
+}
@@ -13,11 +13,17 @@ import android.widget.ImageView;
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.request.animation.GlideAnimation;
 import com.bumptech.glide.request.target.SimpleTarget;
+import com.callanna.rxload.api.DownloadGroup;
 import com.callanna.rxload.api.DownloadHelper;
+import com.callanna.rxload.api.TaskScheduler;
+import com.callanna.rxload.data.ListChange;
 import com.callanna.rxload.data.LoadInfo;
 import com.callanna.rxload.db.DBManager;
 import com.callanna.rxload.db.DownLoadBean;
 import com.callanna.rxload.db.DownLoadStatus;
+import com.callanna.rxload.file.CheckpointPolicy;
+import com.callanna.rxload.file.DigestSpec;
+import com.callanna.rxload.file.FileHelper;
 import com.callanna.rxload.reader.PoiConverter;
 import com.callanna.rxload.reader.tool.FileUtils;
 import com.callanna.rxload.reader.tool.WebViewBridge;
@@ -33,17 +39,15 @@ import java.io.InterruptedIOException;
 import java.lang.ref.WeakReference;
 import java.net.SocketException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
-import io.reactivex.BackpressureStrategy;
 import io.reactivex.Flowable;
-import io.reactivex.FlowableEmitter;
-import io.reactivex.FlowableOnSubscribe;
 import io.reactivex.Observable;
 import io.reactivex.ObservableEmitter;
 import io.reactivex.ObservableOnSubscribe;
@@ -66,16 +70,10 @@ import static com.callanna.rxload.db.DownLoadStatus.PAUSED;
 
 public class RxLoad {
     private WeakReference<Context> context;
-    private static Semaphore semaphore, semaphore_prepared;
     private static DownloadHelper downloadHelper;
-    private static Flowable<DownLoadBean> flowable;
-    private static FlowableEmitter<DownLoadBean> flowableEmitter;
+    private static TaskScheduler taskScheduler;
     private static Map<String, Disposable> disposableMap;
     private static DBManager dbManager;
-    private static List<String> linkedList = new LinkedList();
-
-    private static boolean isStopAll = false;
-
 
     private int maxDownloadNumber = 1;
 
@@ -104,20 +102,12 @@ public class RxLoad {
         dbManager =  DBManager.getSingleton(context);
         downloadHelper = new DownloadHelper(context);
         disposableMap = new ConcurrentHashMap<>();
-        semaphore = new Semaphore(maxDownloadNumber);
-        semaphore_prepared = new Semaphore(1);
-        if (flowable == null) {
-
-            flowable = Flowable.create(new FlowableOnSubscribe<DownLoadBean>() {
-                @Override
-                public void subscribe(@NonNull FlowableEmitter<DownLoadBean> e) throws Exception {
-                    flowableEmitter = e;
-                }
-            }, BackpressureStrategy.ERROR);
-
-            flowable.subscribeOn(Schedulers.io())
-                    .observeOn(Schedulers.newThread()).subscribe(subscriber_prepare);
-        }
+        taskScheduler = new TaskScheduler(maxDownloadNumber, new TaskScheduler.Runner() {
+            @Override
+            public void run(DownLoadBean bean) {
+                startDownload(bean);
+            }
+        });
     }
 
     public static RxLoad init(Context context) {
@@ -155,7 +145,8 @@ public class RxLoad {
     }
 
     /**
-     * set max thread to download file.
+     * set max thread to download file, the connection count of each range
+     * download is tuned by measured speed between min and max threads.
      *
      * @param max max threads
      * @return instance
@@ -166,6 +157,93 @@ public class RxLoad {
     }
 
 
+    /**
+     * set min thread to download file. each range download starts with max threads
+     * and drops connections that do not add speed, down to min threads.
+     *
+     * @param min min threads
+     * @return instance
+     */
+    public RxLoad minThread(int min) {
+        downloadHelper.setMinThreads(min);
+        return this;
+    }
+
+    /**
+     * set how often range download progress is saved to disk.
+     * progress is always saved when a download is paused or completed.
+     *
+     * @param bytes  save after this many bytes are written, 0 to disable
+     * @param millis save after this many milliseconds, 0 to disable
+     * @return instance
+     */
+    public RxLoad checkpoint(long bytes, long millis) {
+        downloadHelper.setCheckpointPolicy(new CheckpointPolicy(bytes, millis));
+        return this;
+    }
+
+    /**
+     * set speed limit of all downloads, can be changed while downloading.
+     *
+     * @param bytesPerSecond bytes per second, 0 means no limit
+     * @return instance
+     */
+    public RxLoad speedLimit(long bytesPerSecond) {
+        downloadHelper.setSpeedLimit(bytesPerSecond);
+        return this;
+    }
+
+    /**
+     * set speed limit shared by all downloads from the host.
+     *
+     * @param host           host, such as "dl.example.com"
+     * @param bytesPerSecond bytes per second, 0 means no limit
+     * @return instance
+     */
+    public RxLoad hostSpeedLimit(String host, long bytesPerSecond) {
+        downloadHelper.setHostSpeedLimit(host, bytesPerSecond);
+        return this;
+    }
+
+    /**
+     * set speed limit of one download, can be changed while downloading.
+     *
+     * @param url            url
+     * @param bytesPerSecond bytes per second, 0 means no limit
+     * @return instance
+     */
+    public RxLoad taskSpeedLimit(String url, long bytesPerSecond) {
+        downloadHelper.setTaskSpeedLimit(url, bytesPerSecond);
+        return this;
+    }
+
+    /**
+     * set expected digest of one download, verified while the file is written.
+     * Without it the Content-MD5 / Digest response headers are used if present.
+     *
+     * @param url  url
+     * @param spec whole-file digest and/or block digest manifest, see {@link DigestSpec}
+     * @return instance
+     */
+    public RxLoad digest(String url, DigestSpec spec) {
+        downloadHelper.setDigest(url, spec);
+        return this;
+    }
+
+    /**
+     * set mirror urls serving the same content as url, range segments are spread
+     * across them and steered to the faster ones. Mirrors whose length or ETag
+     * differs from url are not used.
+     *
+     * @param url     url
+     * @param mirrors mirror urls, null or empty to download from url only
+     * @return instance
+     */
+    public RxLoad mirrors(String url, List<String> mirrors) {
+        downloadHelper.setMirrors(url, mirrors);
+        return this;
+    }
+
     /**
      * set max download number when service download
      *
@@ -174,224 +252,284 @@ public class RxLoad {
      */
     public RxLoad maxDownloadNumber(int max) {
         this.maxDownloadNumber = max;
-        semaphore = new Semaphore(maxDownloadNumber);
+        taskScheduler.setMaxRunning(maxDownloadNumber);
         return this;
     }
 
-    public static synchronized void download(List<String> urls) {
-        if(  instance == null){
-            return;
-        }
-        isStopAll = false;
-        Flowable.just(urls)
-                .flatMap(new Function<List<String>, Publisher<String>>() {
-                    @Override
-                    public Publisher<String> apply(List<String> integers) throws Exception {
-                        return Flowable.fromIterable(integers);
-                    }
-                })
-                .subscribeOn(Schedulers.computation())
-                .observeOn(Schedulers.computation())
-                .subscribe(new Subscriber<String>() {
-                    Subscription sp;
+    /**
+     * skip the HEAD request of new downloads, the first "Range: bytes=0-" GET reads
+     * the file info and keeps streaming, other connections start once range support
+     * is confirmed.
+     *
+     * @param probeByGet true to probe with GET
+     * @return instance
+     */
+    public RxLoad probeByGet(boolean probeByGet) {
+        downloadHelper.setProbeByGet(probeByGet);
+        return this;
+    }
 
+    /**
+     * set how long file info from HEAD responses is reused without asking the server again.
+     *
+     * @param millis milliseconds, 0 to disable the cache
+     * @return instance
+     */
+    public RxLoad metadataTtl(long millis) {
+        downloadHelper.setMetadataTtl(millis);
+        return this;
+    }
+
+    /**
+     * keep completed files by content, a new download of the same content (same digest,
+     * or same strong ETag from the same host, and same length) is linked or copied from
+     * the store instead of downloaded again. off by default.
+     *
+     * @param maxBytes max bytes kept, least recently used files are removed first; 0 to disable
+     * @return instance
+     */
+    public RxLoad contentStore(long maxBytes) {
+        downloadHelper.setContentStoreSize(maxBytes);
+        return this;
+    }
+
+    /**
+     * set how many file info checks run at the same time when downloading a list of urls.
+     *
+     * @param parallelism concurrent checks
+     * @return instance
+     */
+    public RxLoad prepareParallelism(int parallelism) {
+        downloadHelper.setPrepareParallelism(parallelism);
+        return this;
+    }
+
+    /**
+     * set max download number of each host, 0 means no limit.
+     *
+     * @param max max download number of each host
+     * @return instance
+     */
+    public RxLoad maxDownloadNumberPerHost(int max) {
+        taskScheduler.setMaxPerHost(max);
+        return this;
+    }
+
+    /**
+     * set max download number of the host, overrides {@link #maxDownloadNumberPerHost(int)}.
+     *
+     * @param host host, such as "dl.example.com"
+     * @param max  max download number, 0 to use the default
+     * @return instance
+     */
+    public RxLoad hostDownloadNumber(String host, int max) {
+        taskScheduler.setHostLimit(host, max);
+        return this;
+    }
+
+    public static void download(List<String> urls) {
+        download(urls, FileHelper.WRITE_BUFFERED, TaskScheduler.PRIORITY_NORMAL);
+    }
+
+    /**
+     * download urls, their file info is checked concurrently and each download
+     * can start as soon as its check finishes, so they may start out of order.
+     *
+     * @param writeMode {@link FileHelper#WRITE_BUFFERED} or {@link FileHelper#WRITE_DIRECT}
+     * @param priority  {@link TaskScheduler#PRIORITY_LOW}, {@link TaskScheduler#PRIORITY_NORMAL}
+     *                  or {@link TaskScheduler#PRIORITY_HIGH}
+     */
+    public static void download(List<String> urls, int writeMode, int priority) {
+        enqueue(urls, writeMode, priority);
+    }
+
+    /**
+     * 批量添加下载: 去掉重复的url, 新任务在一个事务中写入数据库, 然后和
+     * {@link #download(List, int, int)} 一样排队下载.
+     *
+     * @return 这一组任务, 可以观察合计的进度
+     */
+    public static DownloadGroup enqueue(List<String> urls, int writeMode, int priority) {
+        if (instance == null) {
+            return null;
+        }
+        List<String> unique = new ArrayList<>(new LinkedHashSet<>(urls));
+        DownloadGroup group = new DownloadGroup(unique, dbManager.registry());
+        List<String> queued = new ArrayList<>(unique.size());
+        for (String url : unique) {
+            //先加入队列, 排队中或者下载中的url不再准备
+            if (taskScheduler.enqueue(url, priority)) {
+                queued.add(url);
+            }
+        }
+        if (queued.isEmpty()) {
+            return group;
+        }
+        final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        pending.addAll(queued);
+        downloadHelper.prepare(queued, writeMode)
+                .subscribe(new Subscriber<DownLoadBean>() {
                     @Override
                     public void onSubscribe(Subscription s) {
-                        sp = s;
-                        sp.request(1);
+                        s.request(Long.MAX_VALUE);
                     }
 
                     @Override
-                    public void onNext(String url) {
-                        download(url, "");
-                        try {
-                            Thread.sleep(500);
-                            sp.request(1);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
+                    public void onNext(DownLoadBean bean) {
+                        pending.remove(bean.getUrl());
+                        taskScheduler.ready(bean.getUrl(), bean);
                     }
 
                     @Override
                     public void onError(Throwable t) {
-
+                        log(t);
+                        onComplete();
                     }
 
                     @Override
                     public void onComplete() {
-
+                        for (String url : pending) {
+                            taskScheduler.cancel(url);
+                        }
                     }
                 });
-
-
+        return group;
     }
 
-    public static synchronized Observable<LoadInfo> download(final String url) {
+    public static Observable<LoadInfo> download(final String url) {
         if(  instance == null){
             return null;
         }
-        isStopAll = false;
         download(url, "");
 
         return getLoadInfo(url);
     }
 
-    public static synchronized void download(final String url, String filename) {
-        isStopAll = false;
-        if (flowableEmitter != null) {
-            log("onNext: 1");
-            linkedList.add(url);
-            downloadHelper.prepare(url, filename == null ? "" : filename)
-                    .subscribe(new Subscriber<DownLoadBean>() {
-                        Subscription subscription;
+    public static void download(final String url, String filename) {
+        download(url, filename, FileHelper.WRITE_BUFFERED);
+    }
 
-                        @Override
-                        public void onSubscribe(Subscription s) {
-                            subscription = s;
-                            subscription.request(1);
-                        }
+    /**
+     * download with the given write mode, only for this task.
+     *
+     * @param writeMode {@link FileHelper#WRITE_BUFFERED} or {@link FileHelper#WRITE_DIRECT}
+     */
+    public static void download(final String url, String filename, int writeMode) {
+        download(url, filename, writeMode, TaskScheduler.PRIORITY_NORMAL);
+    }
 
-                        @Override
-                        public void onNext(final DownLoadBean bean) {
-                            flowableEmitter.onNext(bean);
-                        }
+    /**
+     * download with priority, ready tasks of the same priority start in the order they were queued.
+     *
+     * @param writeMode {@link FileHelper#WRITE_BUFFERED} or {@link FileHelper#WRITE_DIRECT}
+     * @param priority  {@link TaskScheduler#PRIORITY_LOW}, {@link TaskScheduler#PRIORITY_NORMAL}
+     *                  or {@link TaskScheduler#PRIORITY_HIGH}
+     */
+    public static void download(final String url, String filename, int writeMode, int priority) {
+        if (taskScheduler == null) {
+            return;
+        }
+        //同一个url在排队或者下载中时不会再入队, 调用方通过 getLoadInfo 观察同一个任务
+        if (!taskScheduler.enqueue(url, priority)) {
+            log("already queued or downloading: " + url);
+            return;
+        }
+        log("enqueue: " + url);
+        downloadHelper.prepare(url, filename == null ? "" : filename, writeMode)
+                .subscribe(new Subscriber<DownLoadBean>() {
+                    Subscription subscription;
+                    boolean prepared;
 
-                        @Override
-                        public void onError(Throwable t) {
-                            log(t);
-                            log(" prepared onError");
-                        }
+                    @Override
+                    public void onSubscribe(Subscription s) {
+                        subscription = s;
+                        subscription.request(1);
+                    }
 
-                        @Override
-                        public void onComplete() {
-                            log(" prepared onComplete");
+                    @Override
+                    public void onNext(final DownLoadBean bean) {
+                        prepared = true;
+                        taskScheduler.ready(url, bean);
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        log(t);
+                        log(" prepared onError");
+                        taskScheduler.cancel(url);
+                    }
 
+                    @Override
+                    public void onComplete() {
+                        log(" prepared onComplete");
+                        if (!prepared) {
+                            taskScheduler.cancel(url);
                         }
+                    }
 
-                    });
-        }
+                });
     }
 
-    static Subscriber<DownLoadBean> subscriber_prepare = new Subscriber<DownLoadBean>() {
-        Subscription subscription;
+    /**
+     * move a queued download to the front of the queue.
+     *
+     * @return false if the url is not queued
+     */
+    public static boolean moveToFront(String url) {
+        return taskScheduler != null && taskScheduler.moveToFront(url);
+    }
 
-        @Override
-        public void onSubscribe(Subscription s) {
-            subscription = s;
-            subscription.request(1);
+    private static void startDownload(final DownLoadBean bean) {
+        log("Now is  DownLoading :" + bean.getUrl());
+        if (bean.getStatus().getStatus() == DownLoadStatus.COMPLETED
+                && new File(bean.getSavePath()).exists()) {
+            log("finally  download");
+            taskScheduler.finish(bean.getUrl());
+            return;
         }
-
-        @Override
-        public void onNext(final DownLoadBean bean) {
-            log("onNext: 2");
-            if (isStopAll) {
-                subscription.cancel();
-            } else {
-                log("Now is  DownLoading :" + bean.getUrl());
-                if (bean.getStatus().getStatus() == DownLoadStatus.COMPLETED) {
-                    File file = new File(bean.getSavePath());
-                    if (file.exists()) {
-                        linkedList.remove(bean.getUrl());
-                        subscription.request(1);
+        Disposable disposable = Observable.just(1)
+                .flatMap(new Function<Integer, ObservableSource<DownLoadStatus>>() {
+                    @Override
+                    public ObservableSource<DownLoadStatus> apply(@NonNull Integer integer) throws Exception {
+                        return downloadHelper.startDownLoad(bean);
+                    }
+                })
+                .observeOn(Schedulers.io())
+                .subscribeOn(Schedulers.newThread())
+                .doOnError(new Consumer<Throwable>() {
+                    @Override
+                    public void accept(@NonNull Throwable throwable) throws Exception {
+                        log(throwable);
+                    }
+                })
+                .doFinally(new Action() {
+                    @Override
+                    public void run() throws Exception {
+                        //下载结束，开始下一个下载任务
                         log("finally  download");
-                        if (!isStopAll) {
-                            semaphore.release();
+                        if (disposableMap != null) {
+                            disposableMap.remove(bean.getUrl());
+                        }
+                        if (taskScheduler != null) {
+                            taskScheduler.finish(bean.getUrl());
                         }
                     }
-                }
-                Disposable disposable = Observable.just(1)
-                        .flatMap(new Function<Integer, ObservableSource<DownLoadStatus>>() {
-                            @Override
-                            public ObservableSource<DownLoadStatus> apply(@NonNull Integer integer) throws Exception {
-                                return downloadHelper.startDownLoad(bean);
-                            }
-                        })
-                        .observeOn(Schedulers.io())
-                        .subscribeOn(Schedulers.newThread())
-                        .doOnComplete(new Action() {
-                            @Override
-                            public void run() throws Exception {
-                                linkedList.remove(bean.getUrl());
-                            }
-                        })
-                        .doOnError(new Consumer<Throwable>() {
-                            @Override
-                            public void accept(@NonNull Throwable throwable) throws Exception {
-                                log(throwable);
-                            }
-                        })
-                        .doFinally(new Action() {
-                            @Override
-                            public void run() throws Exception {
-                                //下载结束，请求下一个下载任务
-                                subscription.request(1);
-                                log("finally  download");
-                                if (!isStopAll) {
-                                    semaphore.release();
-                                }
-                                if (disposableMap.size() > 0) {
-                                    disposableMap.remove(bean.getUrl());
-                                }
-                            }
-                        }).subscribe();
-
-                disposableMap.put(bean.getUrl(), disposable);
-            }
-        }
-
-        @Override
-        public void onError(Throwable t) {
-        }
+                }).subscribe();
 
-        @Override
-        public void onComplete() {
-        }
-    };
+        disposableMap.put(bean.getUrl(), disposable);
+    }
 
     public static void start(String url) {
         if(  instance == null){
             return  ;
         }
-        linkedList.add(url);
-        if (flowableEmitter != null) {
-            log("onNext: 1");
-            linkedList.add(url);
-            downloadHelper.prepare(url, "")
-                    .subscribe(new Subscriber<DownLoadBean>() {
-                        Subscription subscription;
-
-                        @Override
-                        public void onSubscribe(Subscription s) {
-                            subscription = s;
-                            subscription.request(1);
-                        }
-
-                        @Override
-                        public void onNext(final DownLoadBean bean) {
-                            flowableEmitter.onNext(bean);
-                        }
-
-                        @Override
-                        public void onError(Throwable t) {
-                            log(t);
-                            log(" prepared onError");
-                        }
-
-                        @Override
-                        public void onComplete() {
-                            log(" prepared onComplete");
-
-                        }
-
-                    });
-        }
+        download(url, "");
     }
 
     public static void startAll() {
         if(  instance == null){
             return  ;
         }
-        isStopAll = false;
         dbManager.searchDownloadByStatus(DownLoadStatus.PAUSED)
                 .flatMap(new Function<List<DownLoadBean>, ObservableSource<DownLoadBean>>() {
                     @Override
@@ -411,23 +549,24 @@ public class RxLoad {
         if(  instance == null){
             return  ;
         }
-        dbManager.updateStatusByUrl(url, PAUSED);
+        taskScheduler.cancel(url);
         Disposable disposable = disposableMap.get(url);
         if (disposable != null) {
             disposable.dispose();
         }
+        dbManager.updateStatusByUrl(url, PAUSED); //先停止, 再写入暂停状态
     }
 
     public static void pauseAll() {
         if(  instance == null){
             return  ;
         }
-        isStopAll = true;
-        for (String url : linkedList) {
+        for (String url : taskScheduler.cancelAll()) {
             dbManager.updateStatusByUrl(url, PAUSED);
         }
-        for (Disposable each : disposableMap.values()) {
-            each.dispose();
+        for (Map.Entry<String, Disposable> each : disposableMap.entrySet()) {
+            each.getValue().dispose();
+            dbManager.updateStatusByUrl(each.getKey(), PAUSED);
         }
     }
 
@@ -435,9 +574,7 @@ public class RxLoad {
         if(  instance == null){
             return  ;
         }
-        if (linkedList.contains(url)) {
-            linkedList.remove(url);
-        }
+        taskScheduler.cancel(url);
         downloadHelper.delete(dbManager.searchByUrl(url));
         Disposable disposable = disposableMap.get(url);
         if (disposable != null) {
@@ -458,8 +595,7 @@ public class RxLoad {
         if(  instance == null){
             return  ;
         }
-        isStopAll = true;
-        linkedList.clear();
+        taskScheduler.cancelAll();
         downloadHelper.deleteAll();
         if (disposableMap != null) {
             for (Disposable each : disposableMap.values()) {
@@ -478,82 +614,67 @@ public class RxLoad {
     }
 
     private static Observable<DownLoadStatus> getDownStatus(String url) {
-        Observable observer = Observable.just(url)
-                .flatMap(new Function<String, ObservableSource<DownLoadBean>>() {
+        return dbManager.registry().observe(url)
+                .throttleLast(500, TimeUnit.MILLISECONDS)
+                .map(new Function<LoadInfo, DownLoadStatus>() {
                     @Override
-                    public ObservableSource<DownLoadBean> apply(@NonNull String url) throws Exception {
-                        return dbManager.searchDownloadByUrl(url)
-                                .throttleLast(500, TimeUnit.MILLISECONDS);
+                    public DownLoadStatus apply(@NonNull LoadInfo info) throws Exception {
+                        return new DownLoadStatus(info.getStatus(), info.getDownloadSize(), info.getTotalSize());
                     }
-                })
-                .flatMap(new Function<DownLoadBean, ObservableSource<DownLoadStatus>>() {
-                    @Override
-                    public ObservableSource<DownLoadStatus> apply(@NonNull DownLoadBean bean) throws Exception {
-                        return Observable.just(bean.getStatus());
-                    }
-                }).observeOn(AndroidSchedulers.mainThread()).subscribeOn(Schedulers.newThread());
-        return observer;
+                }).observeOn(AndroidSchedulers.mainThread());
     }
 
     public static Observable<LoadInfo> getLoadInfo(String url) {
         if(  instance == null){
             return null;
         }
-        Observable observer = Observable.just(url)
-                .flatMap(new Function<String, ObservableSource<DownLoadBean>>() {
-                    @Override
-                    public ObservableSource<DownLoadBean> apply(@NonNull String url) throws Exception {
-                        return dbManager.searchDownloadByUrl(url)
-                                .throttleLast(500, TimeUnit.MILLISECONDS);
-                    }
-                })
-                .flatMap(new Function<DownLoadBean, ObservableSource<LoadInfo>>() {
-                    @Override
-                    public ObservableSource<LoadInfo> apply(@NonNull DownLoadBean bean) throws Exception {
-                        return Observable.just(bean.toLoadInfo());
-                    }
-                }).observeOn(AndroidSchedulers.mainThread()).subscribeOn(Schedulers.newThread());
-        return observer;
+        //内存中的快照, 不查询数据库
+        return dbManager.registry().observe(url)
+                .throttleLast(500, TimeUnit.MILLISECONDS)
+                .observeOn(AndroidSchedulers.mainThread());
     }
 
     public static ObservableSource<List<LoadInfo>> getDownLoading() {
         if(  instance == null){
             return null;
         }
-        return dbManager.searchDownloadByAll()
-                .throttleLast(1, TimeUnit.SECONDS)
-                .flatMap(new Function<List<DownLoadBean>, ObservableSource<List<LoadInfo>>>() {
-                    @Override
-                    public ObservableSource<List<LoadInfo>> apply(@NonNull List<DownLoadBean> downLoadBeen) throws Exception {
-                        log("getDownLoading=--->size:" + downLoadBeen.size());
-                        List<LoadInfo> loadInfos = new ArrayList<>();
-                        for(int i = 0; i < downLoadBeen.size();i++){
-                            loadInfos.add(downLoadBeen.get(i).toLoadInfo());
-                        }
-                        return Observable.just(loadInfos);
-                    }
-                })
-                .subscribeOn(Schedulers.io())
+        return dbManager.registry().observeList(-1)
                 .observeOn(AndroidSchedulers.mainThread());
     }
 
     public static ObservableSource<List<LoadInfo>> getDownLoading(int status) {
-        final List<DownLoadBean> downLoadBeanList = new ArrayList<DownLoadBean>();
         if(  instance == null){
             return null;
         }
-        return dbManager.searchStatus(status)
-                .throttleLast(1, TimeUnit.SECONDS)
-                .flatMap(new Function<List<DownLoadBean>, ObservableSource<List<LoadInfo>>>() {
-                    @Override
-                    public ObservableSource<List<LoadInfo>> apply(@NonNull List<DownLoadBean> downLoadBeen) throws Exception {
-                        List<LoadInfo> loadInfos = new ArrayList<>();
-                        for(int i = 0; i < downLoadBeen.size();i++){
-                            loadInfos.add(downLoadBeen.get(i).toLoadInfo());
-                        }
-                        return Observable.just(loadInfos);
-                    }
-                });
+        return dbManager.registry().observeList(status);
+    }
+
+    /**
+     * 分页获取任务列表, 只有这一页的任务变化时才重新发送.
+     *
+     * @param afterId 上一页最后一个任务的id({@link LoadInfo#getId()}), 第一页为-1
+     * @param limit   每页最多的任务数
+     * @param status  只包含这个状态的任务, -1 表示全部
+     */
+    public static Flowable<List<LoadInfo>> getDownLoading(int afterId, int limit, int status) {
+        if(  instance == null){
+            return null;
+        }
+        return dbManager.registry().observePage(afterId, limit, status)
+                .observeOn(AndroidSchedulers.mainThread());
+    }
+
+    /**
+     * 任务列表的变化, 第一次发送当前所有的任务(插入), 之后每秒最多发送一次变化的任务和字段.
+     *
+     * @param status 只包含这个状态的任务, -1 表示全部
+     */
+    public static Observable<List<ListChange>> getDownLoadingChanges(int status) {
+        if(  instance == null){
+            return null;
+        }
+        return dbManager.registry().observeChanges(status)
+                .observeOn(AndroidSchedulers.mainThread());
     }
 
     public static Observable<LoadInfo> loadFile(String url) {
@@ -755,16 +876,9 @@ public class RxLoad {
 
     public static void release() {
         if (instance != null) {
-            linkedList.clear();
-            isStopAll = false;
-            semaphore.release();
-            semaphore_prepared.release();
-            semaphore = null;
-            semaphore_prepared = null;
+            taskScheduler.cancelAll();
+            taskScheduler = null;
             downloadHelper = null;
-            subscriber_prepare.onComplete();
-            flowable = null;
-            flowableEmitter = null;
             disposableMap = null;
         }
     }
@@ -3,6 +3,9 @@ package com.callanna.rxload;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.callanna.rxload.api.FileChangedException;
+import com.callanna.rxload.file.DigestMismatchException;
+
 import org.reactivestreams.Publisher;
 
 import java.io.Closeable;
@@ -131,6 +134,11 @@ public class Utils {
         return last;
     }
 
+    public static String etag(Response<?> response) {
+        String etag = response.headers().get("ETag");
+        return etag == null ? "" : etag;
+    }
+
     public static long contentLength(Response<?> response) {
         return HttpHeaders.contentLength(response.headers());
     }
@@ -229,7 +237,9 @@ public class Utils {
     }
 
     public static Boolean retry(String hint, int maxRetryCount, Integer integer, Throwable throwable) {
-        if (throwable instanceof ProtocolException) {
+        if (throwable instanceof FileChangedException || throwable instanceof DigestMismatchException) {
+            return false; //重试也不会成功, 需要重新下载
+        } else if (throwable instanceof ProtocolException) {
             if (integer < maxRetryCount + 1) {
                 log(RETRY_HINT, hint, "ProtocolException", integer);
                 return true;
@@ -0,0 +1,204 @@
+package com.callanna.rxload.api;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import com.callanna.rxload.db.ContentBlob;
+import com.callanna.rxload.db.DBManager;
+import com.callanna.rxload.db.DownLoadBean;
+
+import java.io.File;
+import java.io.IOException;
+
+import okhttp3.HttpUrl;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.Okio;
+import okio.Source;
+
+import static com.callanna.rxload.Utils.empty;
+import static com.callanna.rxload.Utils.log;
+import static com.callanna.rxload.Utils.mkdirs;
+import static okhttp3.internal.Util.closeQuietly;
+
+/**
+ * 已完成文件的内容存储.
+ * <p>
+ * 按内容的标识保存下载完成的文件: 有摘要时用摘要加长度, 否则用同一个服务器的强 ETag 加长度.
+ * 新的任务检查后得到已有的标识时, 从存储中链接(不支持时复制)一份, 不再下载.
+ * 文件在存储中保存一个硬链接, 总长度超过上限时删除最久没有使用的.
+ */
+public class ContentStore {
+    private final DBManager dbManager;
+    private final File dir;
+    private volatile long maxSize;
+
+    /**
+     * @param dir 存储目录, 需要和下载的文件在同一个分区才能使用硬链接
+     */
+    public ContentStore(DBManager dbManager, File dir) {
+        this.dbManager = dbManager;
+        this.dir = dir;
+    }
+
+    /**
+     * @param maxSize 最多保存的字节数, 小于等于0表示不使用
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        if (maxSize > 0) {
+            mkdirs(dir.getPath());
+            evict();
+        }
+    }
+
+    public boolean enabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * @return 文件内容的标识, 长度未知或者没有摘要和强 ETag 时返回null
+     */
+    public String key(DownLoadBean bean) {
+        long length = bean.getStatus() == null ? 0 : bean.getStatus().getTotalSize();
+        if (length <= 0) {
+            return null;
+        }
+        if (!empty(bean.getDigest())) {
+            return "digest:" + bean.getDigest() + ":" + length;
+        }
+        String etag = bean.getEtag();
+        HttpUrl url = HttpUrl.parse(bean.getUrl());
+        if (empty(etag) || etag.startsWith("W/") || url == null) {
+            return null;
+        }
+        //ETag 只在同一个服务器内有意义
+        return "etag:" + url.host() + ":" + etag + ":" + length;
+    }
+
+    /**
+     * @return 标识中最后一段的文件长度, 格式不对时返回-1
+     */
+    private static long length(String key) {
+        try {
+            return Long.parseLong(key.substring(key.lastIndexOf(':') + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 把已有的内容放到 target
+     *
+     * @return 文件长度, 存储中没有时返回-1
+     */
+    public synchronized long restore(String key, File target) {
+        if (!enabled() || key == null) {
+            return -1;
+        }
+        ContentBlob blob = dbManager.searchContent(key);
+        if (blob == null) {
+            return -1;
+        }
+        File file = new File(blob.getPath());
+        if (file.length() != blob.getLength()) {
+            log("content missing or changed: " + key);
+            file.delete();
+            dbManager.deleteContent(key);
+            return -1;
+        }
+        try {
+            link(file, target);
+        } catch (IOException e) {
+            log(e);
+            return -1;
+        }
+        dbManager.touchContent(key, System.currentTimeMillis());
+        log("content hit: " + key);
+        return blob.getLength();
+    }
+
+    /**
+     * 保存下载完成的文件, 失败时只记录日志. 文件长度和标识中的长度不同时不保存.
+     */
+    public synchronized void put(String key, File source) {
+        long maxSize = this.maxSize;
+        if (maxSize <= 0 || key == null || source.length() > maxSize) {
+            return;
+        }
+        if (source.length() != length(key)) {
+            log("content length mismatch, skip: " + key);
+            return;
+        }
+        ContentBlob saved = dbManager.searchContent(key);
+        if (saved != null && new File(saved.getPath()).length() == saved.getLength()) {
+            dbManager.touchContent(key, System.currentTimeMillis());
+            return;
+        }
+        File file = new File(dir, ByteString.encodeUtf8(key).sha1().hex());
+        try {
+            mkdirs(dir.getPath());
+            link(source, file);
+        } catch (IOException e) {
+            log(e);
+            return;
+        }
+        ContentBlob blob = new ContentBlob(key);
+        blob.setPath(file.getPath());
+        blob.setLength(file.length());
+        blob.setLastUsed(System.currentTimeMillis());
+        dbManager.saveContent(blob);
+        evict();
+    }
+
+    /**
+     * 超过上限时删除最久没有使用的文件
+     */
+    private synchronized void evict() {
+        long maxSize = this.maxSize;
+        long size = dbManager.contentSize();
+        if (maxSize <= 0 || size <= maxSize) {
+            return;
+        }
+        for (ContentBlob each : dbManager.searchContentByLastUsed()) {
+            new File(each.getPath()).delete();
+            dbManager.deleteContent(each.getKey());
+            size -= each.getLength();
+            log("content evicted: " + each.getKey());
+            if (size <= maxSize) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 硬链接, 不支持或者失败(比如不在同一个分区)时复制
+     */
+    private static void link(File from, File to) throws IOException {
+        to.delete();
+        if (Build.VERSION.SDK_INT >= 21) {
+            try {
+                Os.link(from.getPath(), to.getPath());
+                return;
+            } catch (ErrnoException e) {
+                log("link failed, copy instead: " + e.getMessage());
+            }
+        }
+        File temp = new File(to.getPath() + DownloadHelper.TMP_SUFFIX);
+        Source source = null;
+        BufferedSink sink = null;
+        try {
+            source = Okio.source(from);
+            sink = Okio.buffer(Okio.sink(temp));
+            sink.writeAll(source);
+        } finally {
+            closeQuietly(source);
+            closeQuietly(sink);
+        }
+        if (!temp.renameTo(to)) {
+            temp.delete();
+            throw new IOException("rename failed: " + to);
+        }
+    }
+}
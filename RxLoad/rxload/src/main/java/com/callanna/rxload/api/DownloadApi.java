@@ -22,6 +22,12 @@ public interface DownloadApi {
     @Streaming
     Flowable<Response<ResponseBody>> download(@Header("Range") String range, @Url String url);
 
+    @GET
+    @Streaming
+    Flowable<Response<ResponseBody>> downloadIfRange(@Header("Range") String range,
+                                                     @Header("If-Range") String ifRange,
+                                                     @Url String url);
+
     @HEAD
     Observable<Response<Void>> check(@Url String url);
 
@@ -0,0 +1,126 @@
+package com.callanna.rxload.api;
+
+import com.callanna.rxload.data.GroupInfo;
+import com.callanna.rxload.data.ListChange;
+import com.callanna.rxload.data.LoadInfo;
+import com.callanna.rxload.db.DownLoadStatus;
+import com.callanna.rxload.db.TaskRegistry;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.annotations.NonNull;
+import io.reactivex.functions.Function;
+
+/**
+ * 一次批量添加的任务, 见 {@link com.callanna.rxload.RxLoad#enqueue(List, int, int)}.
+ * <p>
+ * 合计进度由任务列表的变化({@link TaskRegistry#observeChanges(int)})累加得到, 不查询数据库.
+ */
+public class DownloadGroup {
+    private final List<String> urls;
+    private final TaskRegistry registry;
+
+    public DownloadGroup(List<String> urls, TaskRegistry registry) {
+        this.urls = Collections.unmodifiableList(urls);
+        this.registry = registry;
+    }
+
+    /**
+     * @return 这一组的url, 已经去掉重复的
+     */
+    public List<String> getUrls() {
+        return urls;
+    }
+
+    public int size() {
+        return urls.size();
+    }
+
+    /**
+     * 合计进度, 订阅时先发送当前的进度, 之后有变化时最多每秒发送一次.
+     * 被删除的任务不再计算在内. 在计算线程发送, 更新界面时需要 observeOn.
+     */
+    public Observable<GroupInfo> progress() {
+        return Observable.defer(new Callable<ObservableSource<GroupInfo>>() {
+            @Override
+            public ObservableSource<GroupInfo> call() throws Exception {
+                final Set<String> members = new HashSet<>(urls);
+                final Map<Integer, LoadInfo> tasks = new HashMap<>(urls.size() * 2);
+                return registry.observeChanges(-1)
+                        .map(new Function<List<ListChange>, GroupInfo>() {
+                            @Override
+                            public GroupInfo apply(@NonNull List<ListChange> changes) throws Exception {
+                                for (ListChange each : changes) {
+                                    if (!members.contains(each.getInfo().getLoadurl())) {
+                                        continue;
+                                    }
+                                    if (each.getType() == ListChange.REMOVED) {
+                                        tasks.remove(each.getId());
+                                    } else {
+                                        tasks.put(each.getId(), each.getInfo());
+                                    }
+                                }
+                                return sum(tasks.values());
+                            }
+                        });
+            }
+        });
+    }
+
+    private GroupInfo sum(Iterable<LoadInfo> tasks) {
+        int completed = 0;
+        int failed = 0;
+        int running = 0;
+        int waiting = 0;
+        int paused = 0;
+        long downloadSize = 0;
+        long totalSize = 0;
+        for (LoadInfo each : tasks) {
+            switch (each.getStatus()) {
+                case DownLoadStatus.COMPLETED:
+                    completed++;
+                    break;
+                case DownLoadStatus.FAILED:
+                    failed++;
+                    break;
+                case DownLoadStatus.STARTED:
+                case DownLoadStatus.PREPAREING:
+                    running++;
+                    break;
+                case DownLoadStatus.WAITING:
+                    waiting++;
+                    break;
+                case DownLoadStatus.PAUSED:
+                    paused++;
+                    break;
+            }
+            downloadSize += each.getDownloadSize();
+            if (each.getTotalSize() > 0) {
+                totalSize += each.getTotalSize();
+            }
+        }
+        int status;
+        if (completed == urls.size()) {
+            status = DownLoadStatus.COMPLETED;
+        } else if (running > 0) {
+            status = DownLoadStatus.STARTED;
+        } else if (waiting > 0) {
+            status = DownLoadStatus.WAITING;
+        } else if (failed > 0) {
+            status = DownLoadStatus.FAILED;
+        } else if (paused > 0) {
+            status = DownLoadStatus.PAUSED;
+        } else {
+            status = DownLoadStatus.NORMAL;
+        }
+        return new GroupInfo(status, urls.size(), completed, failed, downloadSize, totalSize);
+    }
+}
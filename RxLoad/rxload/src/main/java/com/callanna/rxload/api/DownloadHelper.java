@@ -8,8 +8,14 @@ import com.callanna.rxload.Utils;
 import com.callanna.rxload.db.DBManager;
 import com.callanna.rxload.db.DownLoadBean;
 import com.callanna.rxload.db.DownLoadStatus;
-import com.callanna.rxload.db.DownloadRange;
+import com.callanna.rxload.db.FileMetadata;
+import com.callanna.rxload.file.CheckpointPolicy;
+import com.callanna.rxload.file.DigestMismatchException;
+import com.callanna.rxload.file.DigestSpec;
 import com.callanna.rxload.file.FileHelper;
+import com.callanna.rxload.file.RateLimiter;
+import com.callanna.rxload.file.Segment;
+import com.callanna.rxload.file.SegmentScheduler;
 
 import org.reactivestreams.Publisher;
 
@@ -18,21 +24,31 @@ import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import io.reactivex.BackpressureStrategy;
+import io.reactivex.Completable;
+import io.reactivex.CompletableEmitter;
+import io.reactivex.CompletableOnSubscribe;
 import io.reactivex.Flowable;
 import io.reactivex.FlowableEmitter;
 import io.reactivex.FlowableOnSubscribe;
 import io.reactivex.Observable;
 import io.reactivex.ObservableSource;
-import io.reactivex.Observer;
 import io.reactivex.annotations.NonNull;
-import io.reactivex.disposables.Disposable;
 import io.reactivex.functions.Action;
+import io.reactivex.functions.BooleanSupplier;
 import io.reactivex.functions.Consumer;
 import io.reactivex.functions.Function;
 import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subjects.BehaviorSubject;
+import io.reactivex.subjects.Subject;
+import okhttp3.HttpUrl;
 import okhttp3.ResponseBody;
 import retrofit2.Response;
 import retrofit2.Retrofit;
@@ -51,6 +67,7 @@ import static com.callanna.rxload.db.DownLoadStatus.COMPLETED;
 import static com.callanna.rxload.db.DownLoadStatus.NORMAL;
 import static com.callanna.rxload.db.DownLoadStatus.PREPAREING;
 import static com.callanna.rxload.db.DownLoadStatus.WAITING;
+import static okhttp3.internal.Util.closeQuietly;
 import static java.io.File.separator;
 
 /**
@@ -62,23 +79,42 @@ import static java.io.File.separator;
 public class DownloadHelper {
     public static final String TEST_RANGE_SUPPORT = "bytes=0-";
     private static final CharSequence CACHE = "cache";
+    private static final String CONTENT = "content";
     public static final String TMP_SUFFIX = ".tmp";  //temp file
     public static final String LMF_SUFFIX = ".lmf";  //last modify file
+    private static final long MIRROR_CHECK_MILLIS = 5000; //mirror HEAD timeout
+    private static final long PROGRESS_MILLIS = 200; //range download progress sampling interval
     private int maxRetryCount = 3;
+    private int minThreads = 1;
     private int maxThreads = 3;
+    private int prepareParallelism = 4;
+    private boolean probeByGet = false;
     private String defaultSavePath = "";
     private String cachePath = "";
     private FileHelper fileHelper;
     private DownloadApi downloadApi;
     private DBManager dbManager;
+    private MetadataCache metadataCache;
+    private ContentStore contentStore;
+    private final RateLimiter globalLimiter = new RateLimiter(null);
+    private final Map<String, RateLimiter> hostLimiters = new ConcurrentHashMap<>();
+    private final Map<String, RateLimiter> taskLimiters = new ConcurrentHashMap<>();
+    private final Map<String, DigestSpec> digestSpecs = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> mirrorUrls = new ConcurrentHashMap<>();
+    //文件信息中重定向之后的地址, 直接请求它少一次跳转
+    private final Map<String, String> locations = new ConcurrentHashMap<>();
+    //正在下载的任务的进度, 同一个url同时只有一个下载
+    private final ConcurrentHashMap<String, Subject<DownLoadStatus>> inFlight = new ConcurrentHashMap<>();
 
     public DownloadHelper(Context context) {
         downloadApi = RetrofitProvider.getInstance().create(DownloadApi.class);
         defaultSavePath = getExternalStoragePublicDirectory(DIRECTORY_DOWNLOADS).getPath();
         dbManager = DBManager.getSingleton(context.getApplicationContext());
-        fileHelper = new FileHelper(maxThreads);
+        metadataCache = new MetadataCache(dbManager);
+        fileHelper = new FileHelper();
         cachePath = TextUtils.concat(defaultSavePath, separator, CACHE).toString();
         mkdirs(defaultSavePath, cachePath);
+        contentStore = new ContentStore(dbManager, new File(cachePath, CONTENT));
 
 
     }
@@ -97,6 +133,251 @@ public class DownloadHelper {
 
     public void setMaxThreads(int maxThreads) {
         this.maxThreads = maxThreads;
+        fileHelper.setThreads(minThreads, maxThreads);
+    }
+
+    public void setMinThreads(int minThreads) {
+        this.minThreads = minThreads;
+        fileHelper.setThreads(minThreads, maxThreads);
+    }
+
+    /**
+     * Set engine-wide speed limit.
+     *
+     * @param bytesPerSecond bytes per second, 0 means no limit
+     */
+    public void setSpeedLimit(long bytesPerSecond) {
+        globalLimiter.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Set speed limit shared by all downloads from the host.
+     *
+     * @param bytesPerSecond bytes per second, 0 means no limit
+     */
+    public void setHostSpeedLimit(String host, long bytesPerSecond) {
+        hostLimiter(host).setRate(bytesPerSecond);
+    }
+
+    /**
+     * Set speed limit of one download, may be changed while it is running.
+     *
+     * @param bytesPerSecond bytes per second, 0 means no limit
+     */
+    public void setTaskSpeedLimit(String url, long bytesPerSecond) {
+        taskLimiter(url).setRate(bytesPerSecond);
+    }
+
+    private RateLimiter hostLimiter(String host) {
+        host = host == null ? "" : host;
+        RateLimiter limiter = hostLimiters.get(host);
+        if (limiter == null) {
+            synchronized (hostLimiters) {
+                limiter = hostLimiters.get(host);
+                if (limiter == null) {
+                    limiter = new RateLimiter(globalLimiter);
+                    hostLimiters.put(host, limiter);
+                }
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * task limiter chained to its host limiter and the engine-wide limiter.
+     */
+    private RateLimiter taskLimiter(String url) {
+        RateLimiter limiter = taskLimiters.get(url);
+        if (limiter == null) {
+            synchronized (taskLimiters) {
+                limiter = taskLimiters.get(url);
+                if (limiter == null) {
+                    HttpUrl httpUrl = HttpUrl.parse(url);
+                    limiter = new RateLimiter(hostLimiter(httpUrl == null ? "" : httpUrl.host()));
+                    taskLimiters.put(url, limiter);
+                }
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * Skip the HEAD request of new downloads, read file info from the first
+     * "Range: bytes=0-" GET and keep streaming it.
+     */
+    public void setProbeByGet(boolean probeByGet) {
+        this.probeByGet = probeByGet;
+    }
+
+    /**
+     * File info from HEAD responses is reused for ttl milliseconds.
+     *
+     * @param ttl milliseconds, 0 to disable the cache
+     */
+    public void setMetadataTtl(long ttl) {
+        metadataCache.setTtl(ttl);
+    }
+
+    /**
+     * Keep completed files by content (digest or strong ETag plus length) and reuse them
+     * for new downloads of the same content instead of fetching again.
+     *
+     * @param maxSize max bytes kept, least recently used files are removed first; 0 to disable
+     */
+    public void setContentStoreSize(long maxSize) {
+        contentStore.setMaxSize(maxSize);
+    }
+
+    public void setPrepareParallelism(int prepareParallelism) {
+        this.prepareParallelism = Math.max(1, prepareParallelism);
+    }
+
+    public void setCheckpointPolicy(CheckpointPolicy checkpointPolicy) {
+        fileHelper.setCheckpointPolicy(checkpointPolicy);
+    }
+
+    /**
+     * Expected digest of the file, verified while it is written. Takes precedence
+     * over the digest read from Content-MD5 / Digest response headers.
+     *
+     * @param spec null to use the response headers only
+     */
+    public void setDigest(String url, DigestSpec spec) {
+        if (spec == null) {
+            digestSpecs.remove(url);
+        } else {
+            digestSpecs.put(url, spec);
+        }
+    }
+
+    /**
+     * Set mirror urls serving the same content as url. Range segments are spread
+     * across all of them, a mirror whose length or ETag differs is not used.
+     *
+     * @param mirrors null or empty to download from url only
+     */
+    public void setMirrors(String url, List<String> mirrors) {
+        if (mirrors == null || mirrors.isEmpty()) {
+            mirrorUrls.remove(url);
+        } else {
+            mirrorUrls.put(url, new ArrayList<>(mirrors));
+        }
+    }
+
+    /**
+     * 检查所有镜像地址, 长度不同, 不支持断点或者 ETag 不同的不使用. 在写入任何数据之前调用.
+     * 所有 HEAD 请求同时发出, 超过 {@link #MIRROR_CHECK_MILLIS} 没有响应的不使用.
+     *
+     * @return 只发射一个检查结果, 所有连接共用同一次检查; 没有设置镜像或者都不能用时只有任务自己的url
+     */
+    private Flowable<MirrorSet> checkMirrors(final DownLoadBean bean) {
+        final MirrorSet mirrors = new MirrorSet(bean.getUrl(), ifRange(bean));
+        List<String> urls = mirrorUrls.get(bean.getUrl());
+        if (urls == null) {
+            return Flowable.just(mirrors);
+        }
+        List<Observable<Response<Void>>> checks = new ArrayList<>();
+        for (final String url : urls) {
+            if (url.equals(bean.getUrl())) {
+                continue;
+            }
+            checks.add(downloadApi.checkRangeByHead(TEST_RANGE_SUPPORT, url)
+                    .subscribeOn(Schedulers.io())
+                    .timeout(MIRROR_CHECK_MILLIS, TimeUnit.MILLISECONDS)
+                    .doOnNext(new Consumer<Response<Void>>() {
+                        @Override
+                        public void accept(Response<Void> response) throws Exception {
+                            String problem = mirrorProblem(bean, response);
+                            if (problem == null) {
+                                mirrors.add(url, ifRange(Utils.etag(response), Utils.lastModify(response)));
+                            } else {
+                                log("mirror skipped: " + url + ", " + problem);
+                            }
+                        }
+                    })
+                    .onErrorResumeNext(new Function<Throwable, ObservableSource<Response<Void>>>() {
+                        @Override
+                        public ObservableSource<Response<Void>> apply(Throwable throwable) throws Exception {
+                            log("mirror check failed: " + url + ", " + throwable);
+                            return Observable.empty();
+                        }
+                    }));
+        }
+        return Observable.merge(checks)
+                .ignoreElements()
+                .andThen(Observable.fromCallable(new Callable<MirrorSet>() {
+                    @Override
+                    public MirrorSet call() throws Exception {
+                        log("mirrors: " + mirrors.size() + " for " + bean.getUrl());
+                        return mirrors;
+                    }
+                }))
+                .toFlowable(BackpressureStrategy.LATEST)
+                .cache();
+    }
+
+    /**
+     * 检查完镜像之后开始一个连接
+     *
+     * @param mirrors {@link #checkMirrors} 的结果
+     */
+    private Flowable<DownLoadStatus> rangeDownload(final int index, final DownLoadBean bean,
+                                                   final SegmentScheduler scheduler,
+                                                   Flowable<MirrorSet> mirrors) {
+        return mirrors.flatMap(new Function<MirrorSet, Publisher<DownLoadStatus>>() {
+            @Override
+            public Publisher<DownLoadStatus> apply(@NonNull MirrorSet checked) throws Exception {
+                return rangeDownload(index, bean, scheduler, checked.size() > 1 ? checked : null);
+            }
+        });
+    }
+
+    /**
+     * @return 不能作为镜像的原因, 可以使用时返回null
+     */
+    private String mirrorProblem(DownLoadBean bean, Response<Void> response) {
+        if (!response.isSuccessful()) {
+            return "http " + response.code();
+        }
+        if (Utils.notSupportRange(response)) {
+            return "range not supported";
+        }
+        long length = Utils.contentLength(response);
+        if (length != bean.getStatus().getTotalSize()) {
+            return "length " + length + " != " + bean.getStatus().getTotalSize();
+        }
+        String etag = Utils.etag(response);
+        if (!empty(etag) && !empty(bean.getEtag()) && !etag.equals(bean.getEtag())) {
+            return "etag " + etag + " != " + bean.getEtag();
+        }
+        return null;
+    }
+
+    /**
+     * @return 请求使用的地址, 有重定向之后的地址时使用它
+     */
+    private String requestUrl(String url) {
+        String location = locations.get(url);
+        return location != null ? location : url;
+    }
+
+    /**
+     * 请求出错时不再使用重定向之后的地址(可能已经失效), 重试时重新从 url 跳转
+     */
+    private void dropLocation(String url) {
+        if (locations.remove(url) != null) {
+            log("location dropped: " + url);
+        }
+    }
+
+    /**
+     * 设置的摘要优先, 其次是保存在记录中的(来自响应头或者上次设置的整个文件的摘要).
+     *
+     * @return 不校验时返回null
+     */
+    private DigestSpec digestSpec(DownLoadBean bean) {
+        DigestSpec spec = digestSpecs.get(bean.getUrl());
+        return spec != null ? spec : DigestSpec.decode(bean.getDigest());
     }
 
 
@@ -107,7 +388,8 @@ public class DownloadHelper {
      * @throws ParseException
      */
     public void prepareNormalDownload(DownLoadBean bean) throws IOException, ParseException {
-        fileHelper.prepareDownload(new File(bean.getLmfPath()), new File(bean.getSavePath()), bean.getStatus().getTotalSize());
+        fileHelper.prepareDownload(new File(bean.getLmfPath()), new File(bean.getSavePath()),
+                bean.getStatus().getTotalSize(), bean.getLastModify());
     }
 
     /**
@@ -117,43 +399,50 @@ public class DownloadHelper {
      * @throws ParseException
      */
     public void prepareRangeDownload(DownLoadBean bean) throws IOException, ParseException {
-        fileHelper.prepareDownload(new File(bean.getLmfPath()),new File(bean.getTempPath()), new File(bean.getSavePath()),  bean.getStatus().getTotalSize());
+        DigestSpec spec = digestSpec(bean);
+        fileHelper.prepareDownload(new File(bean.getLmfPath()),new File(bean.getTempPath()), new File(bean.getSavePath()),
+                bean.getStatus().getTotalSize(), bean.getLastModify(), spec == null ? 0 : spec.getBlockSize());
     }
 
     /**
-     * Read download range from record file.
+     * Open segment scheduler from record file.
      *
-     * @param index index
-     * @return
+     * @return SegmentScheduler
      * @throws IOException
      */
-    public DownloadRange readDownloadRange(File temp,int index) throws IOException {
-        return fileHelper.readDownloadRange(temp, index);
+    public SegmentScheduler openScheduler(DownLoadBean bean) throws IOException {
+        return fileHelper.openScheduler(new File(bean.getTempPath()), new File(bean.getSavePath()),
+                digestSpec(bean));
     }
 
-
     /**
      * Normal download save.
      *
      * @param e        emitter
+     * @param url      url
      * @param response response
+     * @param writeMode write mode
+     * @param digestSpec expected digest, null to skip verification
      */
-    public void save(FlowableEmitter<DownLoadStatus> e,String path, ResponseBody response) {
+    public void save(FlowableEmitter<DownLoadStatus> e,String url,String path, ResponseBody response, int writeMode,
+                     DigestSpec digestSpec) {
 
-        fileHelper.saveFile(e, new File(path), response);
+        fileHelper.saveFile(e, new File(path), response, writeMode, taskLimiter(url), digestSpec);
     }
 
     /**
      * Range download save
      *
-     * @param emitter  emitter
-     * @param index    download index
-     * @param response response
-     * @throws IOException
+     * @param emitter   emitter
+     * @param url       url
+     * @param scheduler segment scheduler
+     * @param segment   download segment
+     * @param response  response
+     * @param writeMode write mode
      */
-    public void save(FlowableEmitter<DownLoadStatus> emitter,String path,String tpath, int index, ResponseBody response)
-            throws IOException {
-        fileHelper.saveFile(emitter, index, new File(tpath), new File(path), response);
+    public void save(CompletableEmitter emitter, String url, SegmentScheduler scheduler,
+                     Segment segment, ResponseBody response, int writeMode) {
+        fileHelper.saveFile(emitter, scheduler, segment, response, writeMode, taskLimiter(url));
     }
 
     /**
@@ -161,151 +450,601 @@ public class DownloadHelper {
      *
      * @return response
      */
-    public Publisher<DownLoadStatus> download(DownLoadBean bean) throws InterruptedException {
+    public Publisher<DownLoadStatus> download(final DownLoadBean bean) throws InterruptedException {
+        if (needProbe(bean)) {
+            return probeDownload(bean);
+        }
         if (bean.getIsSupportRange()) {
-            List<Publisher<DownLoadStatus>> tasks = new ArrayList<>();
-            for (int i = 0; i < maxThreads; i++) {
-                tasks.add(rangeDownload(i, bean));
-            }
-            return Flowable.mergeDelayError(tasks);
+            return Flowable.using(new Callable<SegmentScheduler>() {
+                @Override
+                public SegmentScheduler call() throws Exception {
+                    return openScheduler(bean);
+                }
+            }, new Function<SegmentScheduler, Publisher<DownLoadStatus>>() {
+                @Override
+                public Publisher<DownLoadStatus> apply(SegmentScheduler scheduler) throws Exception {
+                    Flowable<MirrorSet> mirrors = checkMirrors(bean);
+                    List<Publisher<DownLoadStatus>> tasks = new ArrayList<>();
+                    for (int i = 0; i < maxThreads; i++) {
+                        tasks.add(rangeDownload(i, bean, scheduler, mirrors));
+                    }
+                    return progress(scheduler, Flowable.mergeDelayError(tasks).concatWith(verify(scheduler)));
+                }
+            }, new Consumer<SegmentScheduler>() {
+                @Override
+                public void accept(SegmentScheduler scheduler) throws Exception {
+                    closeQuietly(scheduler);
+                }
+            });
         } else {
-            return download(bean.getUrl(),bean.getSavePath());
+            return download(bean.getUrl(), bean.getSavePath(), bean.getWriteMode(), digestSpec(bean));
         }
     }
 
+    /**
+     * 一个任务只有一个进度来源: 连接不发送进度, 下载过程中按固定间隔读取调度器的进度快照,
+     * 所有连接结束(包括校验摘要)后再发送一次最终的进度. 只有最终的进度可以是 COMPLETED,
+     * 校验整个文件时数据已经下载完, 但是摘要还可能不对.
+     *
+     * @param workers 所有连接, 不发射数据
+     */
+    private Flowable<DownLoadStatus> progress(final SegmentScheduler scheduler,
+                                              Flowable<DownLoadStatus> workers) {
+        return workers.publish(new Function<Flowable<DownLoadStatus>, Publisher<DownLoadStatus>>() {
+            @Override
+            public Publisher<DownLoadStatus> apply(@NonNull Flowable<DownLoadStatus> shared) throws Exception {
+                Flowable<DownLoadStatus> ticks = Flowable.interval(PROGRESS_MILLIS, PROGRESS_MILLIS, TimeUnit.MILLISECONDS)
+                        .onBackpressureDrop()
+                        .map(new Function<Long, DownLoadStatus>() {
+                            @Override
+                            public DownLoadStatus apply(@NonNull Long tick) throws Exception {
+                                return snapshot(scheduler, false);
+                            }
+                        })
+                        .takeUntil(shared.materialize());
+                Flowable<DownLoadStatus> last = Flowable.fromCallable(new Callable<DownLoadStatus>() {
+                    @Override
+                    public DownLoadStatus call() throws Exception {
+                        return snapshot(scheduler, true);
+                    }
+                });
+                return Flowable.merge(ticks, shared.concatWith(last));
+            }
+        });
+    }
+
+    /**
+     * @param last 所有连接都已结束并且校验通过, 下载完所有数据时才是 COMPLETED
+     */
+    private DownLoadStatus snapshot(SegmentScheduler scheduler, boolean last) {
+        long downloaded = scheduler.downloaded();
+        DownLoadStatus status = new DownLoadStatus(last && downloaded == scheduler.totalSize()
+                ? DownLoadStatus.COMPLETED : DownLoadStatus.STARTED, downloaded, scheduler.totalSize());
+        status.setConnections(scheduler.connections());
+        return status;
+    }
+
+    /**
+     * 所有连接结束后校验整个文件的摘要, 分块摘要在写入时已经校验过.
+     */
+    private Flowable<DownLoadStatus> verify(final SegmentScheduler scheduler) {
+        return Completable.fromAction(new Action() {
+            @Override
+            public void run() throws Exception {
+                scheduler.verify();
+            }
+        }).toFlowable();
+    }
+
+    /**
+     * 文件属性还没有读取, 需要由第一个 GET 请求探测.
+     */
+    private boolean needProbe(DownLoadBean bean) {
+        return probeByGet && empty(bean.getSavePath());
+    }
+
+    /**
+     * Probe with "Range: bytes=0-" GET and keep streaming the response.
+     * If the server supports range, the whole file is planned as one segment that
+     * this connection streams, other connections start only after the response
+     * arrives and take over halves of it by work stealing. Otherwise the response is
+     * saved as a normal download.
+     *
+     * @return response
+     */
+    private Publisher<DownLoadStatus> probeDownload(final DownLoadBean bean) {
+        return downloadApi.download(TEST_RANGE_SUPPORT, bean.getUrl())
+                .subscribeOn(Schedulers.io())  //Important!
+                .flatMap(new Function<Response<ResponseBody>, Publisher<DownLoadStatus>>() {
+                    @Override
+                    public Publisher<DownLoadStatus> apply(final Response<ResponseBody> response) throws Exception {
+                        if (!response.isSuccessful()) {
+                            closeQuietly(response.body());
+                            throw new IOException("probe failed: " + response.code());
+                        }
+                        saveFileInfo(bean, metadataCache.put(bean.getUrl(), response,
+                                response.code() == 206 && !Utils.notSupportRange(response)), PREPAREING);
+                        log("probe  IsSupportRange " + bean.getIsSupportRange());
+                        if (!bean.getIsSupportRange()) {
+                            prepareNormalDownload(bean);
+                            return save(bean.getUrl(), bean.getSavePath(), response.body(), bean.getWriteMode(),
+                                    digestSpec(bean));
+                        }
+                        fileHelper.prepareProbeDownload(new File(bean.getLmfPath()), new File(bean.getTempPath()),
+                                new File(bean.getSavePath()), bean.getStatus().getTotalSize(), bean.getLastModify());
+                        return probeRangeDownload(bean, response.body());
+                    }
+                });
+    }
+
+    private Publisher<DownLoadStatus> probeRangeDownload(final DownLoadBean bean, final ResponseBody body) {
+        return Flowable.using(new Callable<SegmentScheduler>() {
+            @Override
+            public SegmentScheduler call() throws Exception {
+                return openScheduler(bean);
+            }
+        }, new Function<SegmentScheduler, Publisher<DownLoadStatus>>() {
+            @Override
+            public Publisher<DownLoadStatus> apply(final SegmentScheduler scheduler) throws Exception {
+                final Segment first = scheduler.acquire();
+                List<Publisher<DownLoadStatus>> tasks = new ArrayList<>();
+                if (first == null) {
+                    closeQuietly(body); //空文件
+                    return Flowable.empty();
+                }
+                //镜像在探测连接读取响应的同时检查, 不推迟第一个字节
+                Flowable<MirrorSet> mirrors = checkMirrors(bean);
+                //探测连接继续读取自己的响应, 出错时这个单元回到队列, 由连接0重新请求
+                Flowable<DownLoadStatus> probe = Flowable.fromPublisher(
+                        save(bean.getUrl(), scheduler, first, body, bean.getWriteMode()))
+                        .doFinally(new Action() {
+                            @Override
+                            public void run() throws Exception {
+                                scheduler.complete(first);
+                            }
+                        })
+                        .onErrorResumeNext(new Function<Throwable, Publisher<DownLoadStatus>>() {
+                            @Override
+                            public Publisher<DownLoadStatus> apply(Throwable throwable) throws Exception {
+                                log(throwable);
+                                return Flowable.empty();
+                            }
+                        });
+                tasks.add(probe.concatWith(rangeDownload(0, bean, scheduler, mirrors)));
+                for (int i = 1; i < maxThreads; i++) {
+                    tasks.add(rangeDownload(i, bean, scheduler, mirrors));
+                }
+                return progress(scheduler, Flowable.mergeDelayError(tasks).concatWith(verify(scheduler)));
+            }
+        }, new Consumer<SegmentScheduler>() {
+            @Override
+            public void accept(SegmentScheduler scheduler) throws Exception {
+                closeQuietly(scheduler);
+            }
+        });
+    }
+
     /**
      * Normal download request.
      *
      * @return response
      */
     public Publisher<DownLoadStatus> download(String url,final String path) {
+        return download(url, path, FileHelper.WRITE_BUFFERED);
+    }
 
-        return downloadApi.download(null, url)
+    /**
+     * Normal download request.
+     *
+     * @param writeMode write mode
+     * @return response
+     */
+    public Publisher<DownLoadStatus> download(final String url, final String path, final int writeMode) {
+        return download(url, path, writeMode, digestSpecs.get(url));
+    }
+
+    private Publisher<DownLoadStatus> download(final String url, final String path, final int writeMode,
+                                               final DigestSpec digestSpec) {
+        return Flowable
+                .defer(new Callable<Publisher<Response<ResponseBody>>>() {
+                    @Override
+                    public Publisher<Response<ResponseBody>> call() throws Exception {
+                        return downloadApi.download(null, requestUrl(url));
+                    }
+                })
                 .subscribeOn(Schedulers.io())  //Important!
                 .flatMap(new Function<Response<ResponseBody>, Publisher<DownLoadStatus>>() {
                     @Override
                     public Publisher<DownLoadStatus> apply(final Response<ResponseBody> response) throws Exception {
-                        return save(path,"",-1,response.body());
+                        return save(url, path, response.body(), writeMode, digestSpec);
+                    }
+                })
+                .doOnError(new Consumer<Throwable>() {
+                    @Override
+                    public void accept(Throwable throwable) throws Exception {
+                        dropLocation(url);
                     }
                 })
                 .compose(Utils.<DownLoadStatus>retry2(NORMAL_RETRY_HINT,maxRetryCount));
     }
 
     /**
-     * Range download request
+     * Range download request, keep pulling segments until there is no work left.
+     * Connections above the tuned count park between segments until the count goes up
+     * or a segment ends, see {@link SegmentScheduler#park(int)}.
      *
-     * @param index download index
+     * @param index     connection index
+     * @param scheduler segment scheduler
+     * @param mirrors   checked mirrors, null to use the bean url only
      * @return response
      */
-    public Publisher<DownLoadStatus> rangeDownload(final int index, final DownLoadBean bean) {
+    private Publisher<DownLoadStatus> rangeDownload(final int index, final DownLoadBean bean,
+                                                    final SegmentScheduler scheduler, final MirrorSet mirrors) {
+        final AtomicBoolean idle = new AtomicBoolean(false);
         return Flowable
-                .create(new FlowableOnSubscribe<DownloadRange>() {
+                .defer(new Callable<Publisher<DownLoadStatus>>() {
                     @Override
-                    public void subscribe(FlowableEmitter<DownloadRange> e) throws Exception {
-                        DownloadRange range = readDownloadRange(new File(bean.getTempPath()),index);
-                        if (range.legal()) {
-                            e.onNext(range);
+                    public Publisher<DownLoadStatus> call() throws Exception {
+                        if (!scheduler.allowed(index)) {
+                            if (!scheduler.hasWork()) {
+                                idle.set(true);
+                                return Flowable.empty();
+                            }
+                            //等连接数增加或者有单元结束, 在 io 线程上继续, 不占用发通知的连接
+                            return scheduler.park(index)
+                                    .observeOn(Schedulers.io())
+                                    .toFlowable();
                         }
-                        e.onComplete();
+                        Segment segment = scheduler.acquire();
+                        if (segment == null) {
+                            idle.set(true);
+                            return Flowable.empty();
+                        }
+                        return segmentDownload(index, bean, scheduler, segment, mirrors);
                     }
-                }, BackpressureStrategy.ERROR)
-                .flatMap(new Function<DownloadRange, Publisher<Response<ResponseBody>>>() {
+                })
+                .repeatUntil(new BooleanSupplier() {
                     @Override
-                    public Publisher<Response<ResponseBody>> apply(DownloadRange range)
-                            throws Exception {
-                        String rangeStr = "bytes=" + range.start + "-" + range.end;
-                        log("rangeDownload--->" + rangeStr);
-                        return downloadApi.download(rangeStr, bean.getUrl());
+                    public boolean getAsBoolean() throws Exception {
+                        return idle.get();
+                    }
+                });
+    }
+
+    /**
+     * Download one segment, retry resumes from the last written byte.
+     * With mirrors every attempt picks a mirror, a retry after an error avoids the failed one.
+     *
+     * @param index   connection index
+     * @param segment download segment
+     * @param mirrors checked mirrors, null to use the bean url only
+     * @return response
+     */
+    private Publisher<DownLoadStatus> segmentDownload(final int index, final DownLoadBean bean,
+                                                      final SegmentScheduler scheduler,
+                                                      final Segment segment, final MirrorSet mirrors) {
+        //当前这次请求使用的地址, 开始的位置和时间; 上次失败的地址
+        final AtomicReference<MirrorSet.Mirror> mirror = new AtomicReference<>();
+        final AtomicReference<MirrorSet.Mirror> avoid = new AtomicReference<>();
+        final long[] attempt = new long[2];
+        final AtomicBoolean failed = new AtomicBoolean();
+        final Action release = new Action() {
+            @Override
+            public void run() throws Exception {
+                MirrorSet.Mirror current = mirror.getAndSet(null);
+                if (current != null) {
+                    mirrors.release(current, segment.position() - attempt[0],
+                            System.currentTimeMillis() - attempt[1], failed.get());
+                    if (failed.get()) {
+                        avoid.set(current);
+                    }
+                }
+            }
+        };
+        return Flowable
+                .defer(new Callable<Publisher<Response<ResponseBody>>>() {
+                    @Override
+                    public Publisher<Response<ResponseBody>> call() throws Exception {
+                        if (segment.finished()) {
+                            return Flowable.empty();
+                        }
+                        String rangeStr = "bytes=" + segment.position() + "-" + segment.end();
+                        if (mirrors == null) {
+                            log("rangeDownload--->" + index + " " + rangeStr);
+                            return downloadApi.downloadIfRange(rangeStr, ifRange(bean), requestUrl(bean.getUrl()));
+                        }
+                        failed.set(false);
+                        MirrorSet.Mirror current = mirrors.acquire(avoid.getAndSet(null));
+                        mirror.set(current);
+                        attempt[0] = segment.position();
+                        attempt[1] = System.currentTimeMillis();
+                        log("rangeDownload--->" + index + " " + rangeStr + " " + current.url);
+                        return downloadApi.downloadIfRange(rangeStr, current.ifRange, current.url);
                     }
                 })
                 .flatMap(new Function<Response<ResponseBody>, Publisher<DownLoadStatus>>() {
                     @Override
                     public Publisher<DownLoadStatus> apply(Response<ResponseBody> response) throws Exception {
-                        return save(bean.getSavePath(),bean.getTempPath(),index, response.body());
+                        MirrorSet.Mirror current = mirror.get();
+                        if (response.code() == 200 || response.code() == 416) {
+                            //If-Range 不匹配时服务器返回整个文件, 已下载的数据不能再用
+                            closeQuietly(response.body());
+                            if (current != null && !current.primary) {
+                                //只是这个镜像上的文件变了, 换一个地址
+                                mirrors.disable(current, "changed, http " + response.code());
+                                throw new IOException("mirror changed: " + current.url);
+                            }
+                            throw new FileChangedException(bean.getUrl(), response.code());
+                        }
+                        if (!response.isSuccessful()) {
+                            closeQuietly(response.body());
+                            throw new IOException("range request failed: " + response.code());
+                        }
+                        if (response.code() == 206 && (current == null || current.primary)
+                                && ifRange(bean) != null) {
+                            //If-Range 匹配, 服务器确认文件没有变化, 缓存的文件信息继续有效
+                            metadataCache.touch(bean.getUrl());
+                        }
+                        return save(bean.getUrl(), scheduler, segment, response.body(), bean.getWriteMode());
                     }
                 })
                 .subscribeOn(Schedulers.io())  //Important!;
-                .compose(Utils.<DownLoadStatus>retry2(formatStr(RANGE_RETRY_HINT, index),maxRetryCount));
+                .doOnError(new Consumer<Throwable>() {
+                    @Override
+                    public void accept(Throwable throwable) throws Exception {
+                        failed.set(true);
+                        dropLocation(bean.getUrl());
+                    }
+                })
+                //在重试之前结算这次请求, doFinally 会在重试开始之后才执行
+                .doOnTerminate(release)
+                .doOnCancel(release)
+                .compose(Utils.<DownLoadStatus>retry2(formatStr(RANGE_RETRY_HINT, index),
+                        mirrors == null ? maxRetryCount : maxRetryCount + mirrors.size() - 1))
+                .doFinally(new Action() {
+                    @Override
+                    public void run() throws Exception {
+                        scheduler.complete(segment);
+                    }
+                });
+    }
 
+    /**
+     * 保存普通下载的文件,以及下载进度
+     *
+     * @param response 响应值
+     * @return Flowable
+     */
+    private Publisher<DownLoadStatus> save(final String url, final String path,
+                                           final ResponseBody response, final int writeMode,
+                                           final DigestSpec digestSpec) {
+        //单连接, 由 FileHelper 按时间间隔发送进度
+        return Flowable.create(new FlowableOnSubscribe<DownLoadStatus>() {
+            @Override
+            public void subscribe(FlowableEmitter<DownLoadStatus> emitter) throws Exception {
+                save(emitter, url, path, response, writeMode, digestSpec);
+            }
+        }, BackpressureStrategy.LATEST).subscribeOn(Schedulers.io());
     }
 
     /**
      * 保存断点下载的文件,以及下载进度
      *
-     * @param index    下载编号
+     * @param segment  下载单元
      * @param response 响应值
      * @return Flowable
      */
-    private Publisher<DownLoadStatus> save(final String path, final String tpath, final int index, final ResponseBody response) {
+    private Publisher<DownLoadStatus> save(final String url, final SegmentScheduler scheduler,
+                                           final Segment segment, final ResponseBody response,
+                                           final int writeMode) {
+        return Completable.create(new CompletableOnSubscribe() {
+            @Override
+            public void subscribe(CompletableEmitter emitter) throws Exception {
+                save(emitter, url, scheduler, segment, response, writeMode);
+            }
+        }).subscribeOn(Schedulers.io()).toFlowable();
+    }
 
-        Flowable<DownLoadStatus> flowable = Flowable.create(new FlowableOnSubscribe<DownLoadStatus>() {
+    public Flowable<DownLoadBean> prepare(final String url, final String filename) {
+        return prepare(url, filename, FileHelper.WRITE_BUFFERED);
+    }
+
+    public Flowable<DownLoadBean> prepare(final String url, final String filename, final int writeMode) {
+        return Observable.fromCallable(new Callable<DownLoadBean>() {
             @Override
-            public void subscribe(FlowableEmitter<DownLoadStatus> emitter) throws Exception {
-                if (index == -1) {
-                    save(emitter,path , response);
-                } else {
-                    save(emitter,path,tpath, index, response);
+            public DownLoadBean call() throws Exception {
+                DownLoadBean bean = dbManager.searchByUrl(url);
+                if (bean == null) {
+                    bean = new DownLoadBean(url);
+                    bean.setSaveName(filename);
+                    dbManager.add(bean);//先添加到数据库，更新状态
                 }
+                bean.setWriteMode(writeMode);
+                return bean;
+            }
+        }).flatMap(new Function<DownLoadBean, ObservableSource<DownLoadBean>>() {
+            @Override
+            public ObservableSource<DownLoadBean> apply(@NonNull DownLoadBean downLoadBean) throws Exception {
+                return check(downLoadBean);
             }
-        }, BackpressureStrategy.LATEST)
-                .replay(1)
-                .autoConnect();
-        return flowable
-                .throttleFirst(200, TimeUnit.MILLISECONDS).mergeWith(flowable.takeLast(1))
-                .subscribeOn(Schedulers.io());
+        }).subscribeOn(Schedulers.io())
+                .toFlowable(BackpressureStrategy.LATEST);
     }
-    public Flowable<DownLoadBean> prepare(final String url, final String filename) {
-        Flowable flowable = Flowable.create(new FlowableOnSubscribe<DownLoadBean>() {
+
+    /**
+     * 批量准备下载: 去掉重复的url, 一个事务添加所有新记录, 然后并发检查文件信息(最多 prepareParallelism 个),
+     * 每检查完一个就发射一个. 检查失败的任务不会发射.
+     *
+     * @param urls      urls
+     * @param writeMode write mode
+     * @return prepared beans, in the order they finish
+     */
+    public Flowable<DownLoadBean> prepare(final List<String> urls, final int writeMode) {
+        return Observable.fromCallable(new Callable<List<DownLoadBean>>() {
+            @Override
+            public List<DownLoadBean> call() throws Exception {
+                List<DownLoadBean> beans = dbManager.enqueue(urls, "");
+                for (DownLoadBean bean : beans) {
+                    bean.setWriteMode(writeMode);
+                }
+                return beans;
+            }
+        }).flatMapIterable(new Function<List<DownLoadBean>, Iterable<DownLoadBean>>() {
             @Override
-            public void subscribe(@NonNull final FlowableEmitter<DownLoadBean> e) throws Exception {
-                Observable.just(1).flatMap(new Function<Integer, ObservableSource<DownLoadBean>>() {
+            public Iterable<DownLoadBean> apply(@NonNull List<DownLoadBean> beans) throws Exception {
+                return beans;
+            }
+        }).flatMap(new Function<DownLoadBean, ObservableSource<DownLoadBean>>() {
+            @Override
+            public ObservableSource<DownLoadBean> apply(@NonNull DownLoadBean downLoadBean) throws Exception {
+                return check(downLoadBean);
+            }
+        }, prepareParallelism)
+                .subscribeOn(Schedulers.io())
+                .toFlowable(BackpressureStrategy.BUFFER);
+    }
+
+    /**
+     * 检查文件信息, 新的下载读取文件属性, 下载过的检查文件是否被更改. 失败时不发射.
+     * 使用 GET 探测时新的下载不检查, 由第一个 GET 请求读取文件属性.
+     */
+    private Observable<DownLoadBean> check(final DownLoadBean bean) {
+        ObservableSource<DownLoadBean> check;
+        if (bean.getStatus() == null || bean.getStatus().getStatus() == NORMAL
+                || empty(bean.getSavePath())) {
+            FileMetadata cached = metadataCache.get(bean.getUrl());
+            if (cached != null) {
+                saveFileInfo(bean, cached, PREPAREING);
+                check = Observable.just(bean);
+            } else {
+                check = probeByGet ? Observable.just(bean) : checkRange(bean);
+            }
+        } else {
+            //下载过的文件由分段请求的 If-Range 验证, 不再单独检查
+            check = Observable.just(bean);
+        }
+        return Observable.wrap(check)
+                .subscribeOn(Schedulers.io())
+                .onErrorResumeNext(new Function<Throwable, ObservableSource<DownLoadBean>>() {
                     @Override
-                    public ObservableSource<DownLoadBean> apply(@NonNull Integer integer) throws Exception {
-                        DownLoadBean bean = dbManager.searchByUrl(url);
-                        if (bean == null) {
-                            bean = new DownLoadBean(url);
-                            bean.setSaveName(filename);
-                            dbManager.add(bean);//先添加到数据库，更新状态
-                        }
-                        return Observable.just(bean);
+                    public ObservableSource<DownLoadBean> apply(@NonNull Throwable throwable) throws Exception {
+                        log(throwable);
+                        log("prepare failed " + bean.getUrl());
+                        return Observable.empty();
                     }
-                }).flatMap(new Function<DownLoadBean, ObservableSource<DownLoadBean>>() {
+                });
+    }
+
+    /**
+     * Start downloading, at most one download per url at any time. A call while the url
+     * is downloading only observes the running download's progress and never subscribes
+     * to a second download; it completes when the running one ends or is stopped.
+     */
+    public ObservableSource<DownLoadStatus> startDownLoad(final DownLoadBean bean) {
+        return Observable.defer(new Callable<ObservableSource<DownLoadStatus>>() {
+            @Override
+            public ObservableSource<DownLoadStatus> call() throws Exception {
+                final String url = bean.getUrl();
+                final Subject<DownLoadStatus> progress = BehaviorSubject.<DownLoadStatus>create().toSerialized();
+                Subject<DownLoadStatus> running = inFlight.putIfAbsent(url, progress);
+                if (running != null) {
+                    log("already downloading, attach: " + url);
+                    return running.hide();
+                }
+                return startOnce(bean)
+                        .doOnNext(new Consumer<DownLoadStatus>() {
                             @Override
-                            public ObservableSource<DownLoadBean> apply(@NonNull DownLoadBean downLoadBean) throws Exception {
-                                if (downLoadBean.getStatus() == null || downLoadBean.getStatus().getStatus() == NORMAL) {
-                                    return checkRange(downLoadBean);//如果是新的下载，就检查读取下载文件属性
-                                } else {
-                                    return checkFile(downLoadBean, downLoadBean.getLastModify());//如果有下载过，检查文件是否被更改
-                                }
+                            public void accept(DownLoadStatus status) throws Exception {
+                                progress.onNext(status);
                             }
-                        }).subscribeOn(Schedulers.io())
-                .observeOn(Schedulers.newThread()).subscribe(new Observer<DownLoadBean>() {
-                    @Override
-                    public void onSubscribe(@NonNull Disposable d) {
+                        })
+                        .doFinally(new Action() {
+                            @Override
+                            public void run() throws Exception {
+                                inFlight.remove(url, progress);
+                                progress.onComplete(); //出错或者暂停时观察者也结束
+                            }
+                        });
+            }
+        });
+    }
 
+    private Observable<DownLoadStatus> startOnce(final DownLoadBean bean) {
+        final AtomicReference<DownLoadStatus> last = new AtomicReference<>();
+        return Flowable.defer(new Callable<Publisher<DownLoadStatus>>() {
+            @Override
+            public Publisher<DownLoadStatus> call() throws Exception {
+                dbManager.startStatus(bean.getUrl());
+                DownLoadStatus restored = restore(bean);
+                return restored != null ? Flowable.just(restored) : run(bean);
+            }
+        })
+                .onErrorResumeNext(new Function<Throwable, Publisher<DownLoadStatus>>() {
+                    @Override
+                    public Publisher<DownLoadStatus> apply(Throwable throwable) throws Exception {
+                        if (throwable instanceof FileChangedException
+                                || throwable instanceof DigestMismatchException) {
+                            return restart(bean);
+                        }
+                        return Flowable.error(throwable);
                     }
-
+                })
+                .doOnError(new Consumer<Throwable>() {
                     @Override
-                    public void onNext(@NonNull DownLoadBean downLoadBean) {
-                        e.onNext(downLoadBean);
+                    public void accept(Throwable throwable) throws Exception {
+                        log(throwable);
+                        log("download error "+throwable.getMessage());
+                        dbManager.updateStatusByUrl(bean.getUrl(), DownLoadStatus.FAILED);
                     }
-
+                })
+                .doOnNext(new Consumer<DownLoadStatus>() {
                     @Override
-                    public void onError(@NonNull Throwable th) {
-                        e.onComplete();
+                    public void accept(DownLoadStatus status) throws Exception {
+                        last.set(status);
                     }
-
+                })
+                .doOnComplete(new Action() {
                     @Override
-                    public void onComplete() {
-                        e.onComplete();
+                    public void run() throws Exception {
+                        //正常结束但最后的进度不是 COMPLETED 时, 数据不完整
+                        DownLoadStatus status = last.get();
+                        if (status == null || status.getStatus() != COMPLETED) {
+                            log("download ended before completed: " + bean.getUrl());
+                            dbManager.updateStatusByUrl(bean.getUrl(), DownLoadStatus.FAILED);
+                            return;
+                        }
+                        dbManager.updateStatusByUrl(bean.getUrl(), DownLoadStatus.COMPLETED);
+                        File save = new File(bean.getSavePath());
+                        if (save.length() == status.getTotalSize()) {
+                            contentStore.put(contentStore.key(bean), save);
+                        }
                     }
-                });
-            }
-        }, BackpressureStrategy.LATEST);
-        return flowable.delay(500,TimeUnit.MILLISECONDS);
+                })
+                .toObservable();
     }
 
-    public ObservableSource<DownLoadStatus> startDownLoad(final DownLoadBean bean) {
+    /**
+     * 内容存储中已经有这个文件时, 放到保存路径, 不再下载
+     *
+     * @return 完成的状态, 没有时返回null
+     */
+    private DownLoadStatus restore(DownLoadBean bean) {
+        if (!contentStore.enabled() || empty(bean.getSavePath())) {
+            return null;
+        }
+        long length = contentStore.restore(contentStore.key(bean), new File(bean.getSavePath()));
+        if (length < 0) {
+            return null;
+        }
+        new File(bean.getTempPath()).delete();
+        new File(bean.getLmfPath()).delete();
+        DownLoadStatus status = new DownLoadStatus(COMPLETED, length, length);
+        bean.setStatus(status);
+        dbManager.postStatus(bean.getUrl(), status);
+        return status;
+    }
+
+    private Flowable<DownLoadStatus> run(final DownLoadBean bean) {
         return Flowable.just(1)
                 .subscribeOn(Schedulers.io())
                 .flatMap(new Function<Integer, Publisher<DownLoadStatus>>() {
@@ -317,7 +1056,7 @@ public class DownloadHelper {
                 .map(new Function<DownLoadStatus, DownLoadStatus>() {
                     @Override
                     public DownLoadStatus apply(@NonNull DownLoadStatus downLoadStatus) throws Exception {
-                        dbManager.updateStatusByUrl(bean.getUrl(), downLoadStatus);
+                        dbManager.postStatus(bean.getUrl(), downLoadStatus);
                         return downLoadStatus;
                     }
                 })
@@ -330,29 +1069,68 @@ public class DownloadHelper {
                 .map(new Function<DownLoadStatus, DownLoadStatus>() {
                     @Override
                     public DownLoadStatus apply(@NonNull DownLoadStatus downLoadStatus) throws Exception {
-                        dbManager.updateStatusByUrl(bean.getUrl(), downLoadStatus);
+                        dbManager.postStatus(bean.getUrl(), downLoadStatus);
                         return downLoadStatus;
                     }
-                })
-                .doOnError(new Consumer<Throwable>() {
-                    @Override
-                    public void accept(Throwable throwable) throws Exception {
-                        log(throwable);
-                        log("download error "+throwable.getMessage());
-                        dbManager.updateStatusByUrl(bean.getUrl(), DownLoadStatus.FAILED);
-                    }
-                }).doOnComplete(new Action() {
+                });
+    }
+
+    /**
+     * 服务器上的文件已经改变或者下载的数据与摘要不一致, 删除已下载的数据,
+     * 重新检查文件信息后从头下载一次.
+     */
+    private Flowable<DownLoadStatus> restart(final DownLoadBean bean) {
+        return Flowable.defer(new Callable<Publisher<DownLoadBean>>() {
+            @Override
+            public Publisher<DownLoadBean> call() throws Exception {
+                log("download again: " + bean.getUrl());
+                new File(bean.getSavePath()).delete();
+                new File(bean.getTempPath()).delete();
+                new File(bean.getLmfPath()).delete();
+                metadataCache.remove(bean.getUrl());
+                locations.remove(bean.getUrl());
+                bean.setSavePath("");
+                bean.setStatus(new DownLoadStatus(NORMAL));
+                bean.setChanged(true);
+                dbManager.update(bean);
+                return check(bean).toFlowable(BackpressureStrategy.LATEST);
+            }
+        })
+                .switchIfEmpty(Flowable.<DownLoadBean>error(new IOException("check failed: " + bean.getUrl())))
+                .flatMap(new Function<DownLoadBean, Publisher<DownLoadStatus>>() {
                     @Override
-                    public void run() throws Exception {
-                        dbManager.updateStatusByUrl(bean.getUrl(), DownLoadStatus.COMPLETED);
+                    public Publisher<DownLoadStatus> apply(@NonNull DownLoadBean downLoadBean) throws Exception {
+                        return run(downLoadBean);
                     }
-                })
-                .toObservable();
+                });
+    }
+
+    /**
+     * If-Range 的验证值: 优先使用强 ETag, 没有时使用 Last-Modified.
+     *
+     * @return 没有可用的验证值时返回null, 不发送 If-Range
+     */
+    private String ifRange(DownLoadBean bean) {
+        return ifRange(bean.getEtag(), bean.getLastModify());
+    }
+
+    private static String ifRange(String etag, String lastModify) {
+        if (!empty(etag) && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return empty(lastModify) ? null : lastModify;
     }
 
     private Publisher<DownLoadStatus> prepareDownLoad(DownLoadBean bean) {
+            if (contentStore.enabled()
+                    && (!bean.getIsSupportRange() || !new File(bean.getTempPath()).exists())) {
+                //保存的文件可能是存储中文件的硬链接, 重新下载前先删除, 不在原来的文件上写
+                new File(bean.getSavePath()).delete();
+            }
             try {
-                if(bean.getIsSupportRange()) {
+                if (needProbe(bean)) {
+                    //文件在探测请求返回之后准备
+                } else if(bean.getIsSupportRange()) {
                     prepareRangeDownload(bean);
                 } else {
                     prepareNormalDownload(bean);
@@ -377,11 +1155,8 @@ public class DownloadHelper {
                     @Override
                     public ObservableSource<DownLoadBean> apply(@NonNull Response<Void> response) throws Exception {
                         if (response.isSuccessful()) {
-                            saveFileInfo(bean, response, PREPAREING);
-                            bean.setIsSupportRange(!Utils.notSupportRange(response));
-                            if (dbManager != null) {
-                                dbManager.update(bean);
-                            }
+                            saveFileInfo(bean, metadataCache.put(bean.getUrl(), response,
+                                    !Utils.notSupportRange(response)), PREPAREING);
                             log("checkRange  IsSupportRange " + bean.getIsSupportRange());
                         }
                         return Observable.just(bean);
@@ -397,38 +1172,12 @@ public class DownloadHelper {
                 .compose(Utils.<DownLoadBean>retry(formatStr(REQUEST_RETRY_HINT),maxRetryCount));
     }
 
-    /**
-     * http checkRangeByHead request,checkRange need info, check whether if server file has changed.
-     *
-     * @return empty Observable
-     */
-    private ObservableSource<DownLoadBean> checkFile(final DownLoadBean bean, final String lastModify) {
-
-        return downloadApi.checkFileByHead(lastModify, bean.getUrl())
-                .flatMap(new Function<Response<Void>, ObservableSource<DownLoadBean>>() {
-                    @Override
-                    public ObservableSource<DownLoadBean> apply(@NonNull Response<Void> response) throws Exception {
-                        log("accept: checkFile" + response.code());
-                        if (response.code() == 200) {
-                            //如果时间一致，那么返回HTTP状态码304,如果 改变了 返回200
-                            File file = new File(bean.getSavePath());
-                            if(file.exists()){
-                                file.delete();
-                            }
-                            return checkRange(bean);
-                        }else{
-                            return Observable.just(bean);
-                        }
-                    }
-                })
-                .subscribeOn(Schedulers.io())
-                .observeOn(Schedulers.newThread())
-                .compose(Utils.<DownLoadBean>retry(formatStr(REQUEST_RETRY_HINT),maxRetryCount));
-
-    }
-
     public void delete(DownLoadBean bean) {
         if(bean != null) {
+            taskLimiters.remove(bean.getUrl());
+            digestSpecs.remove(bean.getUrl());
+            mirrorUrls.remove(bean.getUrl());
+            locations.remove(bean.getUrl());
             dbManager.clearStatusByUrl(bean.getUrl());
             new File(bean.getSavePath()).delete();
             new File(bean.getTempPath()).delete();
@@ -452,19 +1201,31 @@ public class DownloadHelper {
     /**
      * Save file info
      *
-     * @param response response
+     * @param metadata file info from response or cache
      */
-    public void saveFileInfo(DownLoadBean bean, Response<?> response, int flag) {
+    public void saveFileInfo(DownLoadBean bean, FileMetadata metadata, int flag) {
         DownLoadStatus downLoadStatus = new DownLoadStatus(flag);
         if (empty(bean.getSaveName())) {
-            bean.setSaveName(fileName(bean.getUrl(), response));
+            bean.setSaveName(metadata.getFileName());
         }
         bean.setSavePath(defaultSavePath.toString()+"/"+bean.getSaveName());
         bean.setTempPath(cachePath + File.separator + bean.getFileName()+ TMP_SUFFIX);
         bean.setLmfPath(cachePath + separator + bean.getFileName() + LMF_SUFFIX);
         Log.d("duanyl", "saveFilePath: " + bean.getSavePath());
-        downLoadStatus.setTotalSize(Utils.contentLength(response));
+        downLoadStatus.setTotalSize(metadata.getLength());
         bean.setStatus(downLoadStatus);
-        bean.setLastModify((Utils.lastModify(response)));
+        bean.setLastModify(metadata.getLastModify());
+        bean.setEtag(metadata.getEtag());
+        DigestSpec spec = digestSpecs.get(bean.getUrl());
+        bean.setDigest(spec != null && !empty(spec.encode()) ? spec.encode() : metadata.getDigest());
+        bean.setIsSupportRange(metadata.getIsSupportRange());
+        if (!empty(metadata.getLocation()) && !metadata.getLocation().equals(bean.getUrl())) {
+            locations.put(bean.getUrl(), metadata.getLocation());
+        } else {
+            locations.remove(bean.getUrl());
+        }
+        if (dbManager != null) {
+            dbManager.update(bean);
+        }
     }
 }
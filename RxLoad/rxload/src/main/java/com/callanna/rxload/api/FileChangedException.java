@@ -0,0 +1,14 @@
+package com.callanna.rxload.api;
+
+import java.io.IOException;
+
+/**
+ * 断点续传时服务器上的文件已经改变(If-Range 不匹配)或者不再支持断点, 已下载的数据不能继续使用.
+ */
+public class FileChangedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public FileChangedException(String url, int code) {
+        super("file changed: " + code + " " + url);
+    }
+}
@@ -0,0 +1,119 @@
+package com.callanna.rxload.api;
+
+import com.callanna.rxload.Utils;
+import com.callanna.rxload.db.DBManager;
+import com.callanna.rxload.db.FileMetadata;
+import com.callanna.rxload.file.DigestSpec;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import retrofit2.Response;
+
+import static com.callanna.rxload.Utils.log;
+
+/**
+ * 文件信息缓存.
+ * <p>
+ * 按 url 保存长度, ETag, Last-Modified, 是否支持断点和重定向之后的地址, 保存在数据库中,
+ * 重启之后仍然有效. 超过 ttl 没有向服务器确认过的信息不再使用, 下次检查时重新请求.
+ */
+public class MetadataCache {
+    public static final long DEFAULT_TTL = 60 * 60 * 1000L;
+
+    private final DBManager dbManager;
+    private volatile long ttl = DEFAULT_TTL;
+    private volatile long lastSweep;
+    //最近一次写入确认时间的时间, 分段下载的每个单元都会确认, 不用每次都写数据库
+    private final Map<String, Long> touched = new ConcurrentHashMap<>();
+
+    public MetadataCache(DBManager dbManager) {
+        this.dbManager = dbManager;
+    }
+
+    /**
+     * @param ttl 有效时间(毫秒), 小于等于0表示不使用缓存
+     */
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * 取有效期内的文件信息
+     *
+     * @return 没有或者已过期返回null
+     */
+    public FileMetadata get(String url) {
+        long ttl = this.ttl;
+        if (ttl <= 0) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        sweep(now, ttl);
+        FileMetadata metadata = dbManager.searchMetadata(url);
+        if (metadata == null || now - metadata.getCheckedAt() > ttl) {
+            return null;
+        }
+        log("metadata hit: " + url);
+        return metadata;
+    }
+
+    /**
+     * 从响应中读取文件信息并保存
+     *
+     * @param supportRange 是否支持断点, 由调用者根据请求方式判断
+     */
+    public FileMetadata put(String url, Response<?> response, boolean supportRange) {
+        FileMetadata metadata = new FileMetadata(url);
+        metadata.setLocation(response.raw().request().url().toString());
+        metadata.setFileName(Utils.fileName(url, response));
+        metadata.setLength(Utils.contentLength(response));
+        metadata.setEtag(Utils.etag(response));
+        metadata.setLastModify(Utils.lastModify(response));
+        metadata.setIsSupportRange(supportRange);
+        DigestSpec digest = DigestSpec.fromHeaders(response.headers());
+        metadata.setDigest(digest == null ? "" : digest.encode());
+        metadata.setCheckedAt(System.currentTimeMillis());
+        if (ttl > 0) {
+            dbManager.saveMetadata(metadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * 服务器确认文件没有变化(If-Range 请求返回 206), 有效期从现在重新计算.
+     * 有效期过去十分之一之前重复的确认不再写入.
+     */
+    public void touch(String url) {
+        long ttl = this.ttl;
+        if (ttl <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Long last = touched.get(url);
+        if (last != null && now - last < ttl / 10) {
+            return;
+        }
+        touched.put(url, now);
+        dbManager.touchMetadata(url, now);
+    }
+
+    public void remove(String url) {
+        touched.remove(url);
+        dbManager.deleteMetadata(url);
+    }
+
+    private void sweep(long now, long ttl) {
+        if (now - lastSweep < ttl) {
+            return;
+        }
+        lastSweep = now;
+        dbManager.deleteMetadataBefore(now - ttl);
+        for (Iterator<Long> it = touched.values().iterator(); it.hasNext(); ) {
+            if (now - it.next() > ttl) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.callanna.rxload.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.callanna.rxload.Utils.log;
+
+/**
+ * 同一个文件的多个下载地址, 第一个是任务自己的url.
+ * <p>
+ * 每次请求一个单元时选一个地址: 测得的速度除以正在使用它的连接数, 选最大的, 快的地址分到更多的单元.
+ * 还没有测过速度的地址按目前最快的速度算, 先试一次. 请求失败时换一个地址重试,
+ * 连续失败 {@link #MAX_FAILURES} 次的地址不再使用, 但至少保留一个.
+ */
+class MirrorSet {
+    private static final int MAX_FAILURES = 3;
+    private static final double SMOOTHING = 0.3;
+
+    private final List<Mirror> mirrors = new ArrayList<>();
+
+    /**
+     * @param url     任务的url
+     * @param ifRange 任务的 If-Range 验证值
+     */
+    MirrorSet(String url, String ifRange) {
+        mirrors.add(new Mirror(url, ifRange, true));
+    }
+
+    /**
+     * 添加一个已经检查过(长度和 ETag 一致)的地址
+     *
+     * @param ifRange 这个地址自己的 If-Range 验证值
+     */
+    synchronized void add(String url, String ifRange) {
+        mirrors.add(new Mirror(url, ifRange, false));
+    }
+
+    synchronized int size() {
+        return mirrors.size();
+    }
+
+    /**
+     * 为一次请求选一个地址
+     *
+     * @param avoid 上次失败的地址, 还有其它可用的地址时不选它, 可以为null
+     */
+    synchronized Mirror acquire(Mirror avoid) {
+        double fastest = 0;
+        for (Mirror each : mirrors) {
+            fastest = Math.max(fastest, each.rate);
+        }
+        Mirror best = null;
+        double bestScore = -1;
+        for (Mirror each : mirrors) {
+            if (!each.usable || (each == avoid && usable() > 1)) {
+                continue;
+            }
+            double rate = each.rate < 0 ? Math.max(fastest, 1) : each.rate;
+            double score = rate / (each.active + 1);
+            if (score > bestScore) {
+                best = each;
+                bestScore = score;
+            }
+        }
+        if (best == null) {
+            best = avoid != null ? avoid : mirrors.get(0);
+        }
+        best.active++;
+        return best;
+    }
+
+    /**
+     * 请求结束
+     *
+     * @param bytes  这次写入的字节
+     * @param millis 这次用的时间
+     * @param failed 是否失败
+     */
+    synchronized void release(Mirror mirror, long bytes, long millis, boolean failed) {
+        mirror.active--;
+        if (bytes > 0 && millis > 0) {
+            double rate = (double) bytes / millis;
+            mirror.rate = mirror.rate < 0 ? rate : mirror.rate + SMOOTHING * (rate - mirror.rate);
+        }
+        if (!failed) {
+            mirror.failures = 0;
+        } else if (++mirror.failures >= MAX_FAILURES) {
+            disable(mirror, mirror.failures + " failures");
+        }
+    }
+
+    /**
+     * 不再使用这个地址, 最后一个可用的地址除外
+     */
+    synchronized void disable(Mirror mirror, String reason) {
+        if (mirror.usable && usable() > 1) {
+            mirror.usable = false;
+            log("mirror disabled: " + mirror.url + ", " + reason);
+        }
+    }
+
+    private int usable() {
+        int usable = 0;
+        for (Mirror each : mirrors) {
+            if (each.usable) {
+                usable++;
+            }
+        }
+        return usable;
+    }
+
+    static final class Mirror {
+        final String url;
+        final String ifRange;
+        final boolean primary;
+        //以下由 MirrorSet 加锁访问
+        private double rate = -1;    //字节/毫秒, 平滑后的速度, 没测过时为-1
+        private int active;
+        private int failures;
+        private boolean usable = true;
+
+        Mirror(String url, String ifRange, boolean primary) {
+            this.url = url;
+            this.ifRange = ifRange;
+            this.primary = primary;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.callanna.rxload.api;
+
+import com.callanna.rxload.db.DownLoadBean;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.HttpUrl;
+
+/**
+ * 下载任务调度.
+ * <p>
+ * 任务按优先级排队, 同一优先级中准备好的任务先进先出, 可以把排队中的任务移到最前面.
+ * 同时下载的任务数和每个主机同时下载的任务数都有上限.
+ * 入队只是一次跳表插入, 派发由一个线程串行完成(其它线程只标记一下就返回), 调用方不会被阻塞.
+ */
+public class TaskScheduler {
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    /**
+     * 开始下载任务, 下载结束后必须调用 {@link #finish(String)}.
+     */
+    public interface Runner {
+        void run(DownLoadBean bean);
+    }
+
+    private final Runner runner;
+    private final ConcurrentSkipListSet<Task> queue = new ConcurrentSkipListSet<>();
+    private final ConcurrentHashMap<String, Task> queued = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Task> running = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> hostRunning = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> hostLimits = new ConcurrentHashMap<>();
+    private final AtomicLong tailSeq = new AtomicLong();
+    private final AtomicLong headSeq = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile int maxRunning;
+    private volatile int maxPerHost;
+
+    public TaskScheduler(int maxRunning, Runner runner) {
+        this.maxRunning = maxRunning;
+        this.runner = runner;
+    }
+
+    public void setMaxRunning(int maxRunning) {
+        this.maxRunning = maxRunning;
+        dispatch();
+    }
+
+    /**
+     * @param maxPerHost 每个主机同时下载的任务数, 小于等于0表示不限制
+     */
+    public void setMaxPerHost(int maxPerHost) {
+        this.maxPerHost = maxPerHost;
+        dispatch();
+    }
+
+    /**
+     * @param limit 这个主机同时下载的任务数, 小于等于0表示使用默认值
+     */
+    public void setHostLimit(String host, int limit) {
+        if (limit > 0) {
+            hostLimits.put(host, limit);
+        } else {
+            hostLimits.remove(host);
+        }
+        dispatch();
+    }
+
+    /**
+     * 加入队列, 排到同一优先级的最后. 任务在 {@link #ready} 之前不会开始, 后面已经准备好的任务不等它.
+     *
+     * @return false 已经在队列中或者正在下载
+     */
+    public boolean enqueue(String url, int priority) {
+        if (running.containsKey(url)) {
+            return false;
+        }
+        Task task = new Task(url, priority, tailSeq.incrementAndGet());
+        if (queued.putIfAbsent(url, task) != null) {
+            return false;
+        }
+        if (running.containsKey(url)) {
+            //检查之后同一个url的任务刚好开始下载, 派发时先放入 running 再移出 queued, 这里一定能看到
+            queued.remove(url, task);
+            return false;
+        }
+        queue.add(task);
+        return true;
+    }
+
+    /**
+     * 任务信息准备好了, 可以开始下载.
+     */
+    public void ready(String url, DownLoadBean bean) {
+        Task task;
+        while ((task = queued.get(url)) != null) {
+            task.bean = bean;
+            if (queued.get(url) == task) { //没有被 moveToFront 替换
+                dispatch();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 把排队中的任务移到最前面.
+     *
+     * @return false 任务不在队列中
+     */
+    public boolean moveToFront(String url) {
+        Task task = queued.get(url);
+        if (task == null) {
+            return false;
+        }
+        Task front = new Task(url, PRIORITY_HIGH, -headSeq.incrementAndGet());
+        front.bean = task.bean;
+        //在 queued 中原子替换, 期间被取消或者开始下载时放弃
+        if (!queued.replace(url, task, front)) {
+            return false;
+        }
+        //替换之前 ready 可能刚设置了旧任务, 替换之后的 ready 会设置新任务
+        if (front.bean == null) {
+            front.bean = task.bean;
+        }
+        queue.remove(task);
+        queue.add(front);
+        dispatch();
+        return true;
+    }
+
+    /**
+     * 从队列中移除, 不影响正在下载的任务. 以 queued 为准, 留在 queue 中的任务派发时丢弃.
+     */
+    public boolean cancel(String url) {
+        Task task = queued.remove(url);
+        if (task == null) {
+            return false;
+        }
+        queue.remove(task);
+        return true;
+    }
+
+    /**
+     * 清空队列
+     *
+     * @return 被移除的任务
+     */
+    public List<String> cancelAll() {
+        List<String> urls = new ArrayList<>();
+        for (String url : queued.keySet()) {
+            if (cancel(url)) {
+                urls.add(url);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * 下载结束, 让出位置给后面的任务.
+     */
+    public void finish(String url) {
+        Task task = running.remove(url);
+        if (task != null) {
+            AtomicInteger count = hostRunning.get(task.host);
+            if (count != null) {
+                count.decrementAndGet();
+            }
+            dispatch();
+        }
+    }
+
+    public boolean isQueued(String url) {
+        return queued.containsKey(url);
+    }
+
+    public boolean isRunning(String url) {
+        return running.containsKey(url);
+    }
+
+    /**
+     * 排队中和正在下载的任务
+     */
+    public boolean contains(String url) {
+        return queued.containsKey(url) || running.containsKey(url);
+    }
+
+    /**
+     * 派发任务, 同一时间只有一个线程在派发, 其它线程的调用合并到它的下一轮.
+     */
+    private void dispatch() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            drain();
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drain() {
+        Iterator<Task> iterator = queue.iterator();
+        while (running.size() < maxRunning && iterator.hasNext()) {
+            Task task = iterator.next();
+            if (queued.get(task.url) != task) {
+                queue.remove(task); //已经被取消或者移动
+                continue;
+            }
+            if (task.bean == null) {
+                continue;
+            }
+            AtomicInteger count = hostCount(task.host);
+            if (count.get() >= hostLimit(task.host) || !queue.remove(task)) {
+                continue;
+            }
+            //先放入 running 再移出 queued, 同一个url在任何时刻都不能重新入队
+            running.put(task.url, task);
+            if (!queued.remove(task.url, task)) {
+                running.remove(task.url, task);
+                continue; //已经被取消或者移动
+            }
+            count.incrementAndGet();
+            runner.run(task.bean);
+        }
+    }
+
+    private int hostLimit(String host) {
+        Integer limit = hostLimits.get(host);
+        if (limit != null) {
+            return limit;
+        }
+        return maxPerHost > 0 ? maxPerHost : Integer.MAX_VALUE;
+    }
+
+    private AtomicInteger hostCount(String host) {
+        AtomicInteger count = hostRunning.get(host);
+        if (count == null) {
+            AtomicInteger created = new AtomicInteger();
+            count = hostRunning.putIfAbsent(host, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        return count;
+    }
+
+    private static class Task implements Comparable<Task> {
+        final String url;
+        final String host;
+        final int priority;
+        final long seq;
+        volatile DownLoadBean bean;
+
+        Task(String url, int priority, long seq) {
+            this.url = url;
+            HttpUrl httpUrl = HttpUrl.parse(url);
+            this.host = httpUrl == null ? "" : httpUrl.host();
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            if (priority != o.priority) {
+                return priority > o.priority ? -1 : 1;
+            }
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.callanna.rxload.data;
+
+/**
+ * 一组任务合计的进度, 见 {@link com.callanna.rxload.api.DownloadGroup#progress()}.
+ */
+public class GroupInfo {
+    private final int status;
+    private final int count;
+    private final int completed;
+    private final int failed;
+    private final long downloadsize;
+    private final long totalsize;
+
+    public GroupInfo(int status, int count, int completed, int failed, long downloadSize, long totalSize) {
+        this.status = status;
+        this.count = count;
+        this.completed = completed;
+        this.failed = failed;
+        this.downloadsize = downloadSize;
+        this.totalsize = totalSize;
+    }
+
+    /**
+     * 全部完成时为 COMPLETED; 有任务在下载时为 STARTED, 在等待时为 WAITING;
+     * 其它任务都停止时, 有失败的为 FAILED, 否则为 PAUSED 或 NORMAL.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return 任务数
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public int getCompleted() {
+        return completed;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public long getDownloadSize() {
+        return downloadsize;
+    }
+
+    /**
+     * @return 已知长度的任务的总长度, 还没有检查的任务不计算在内
+     */
+    public long getTotalSize() {
+        return totalsize;
+    }
+
+    /**
+     * @return example: 5%  will return 5, 10% will return 10.
+     */
+    public long getPercentNumber() {
+        if (totalsize <= 0) {
+            return 0;
+        }
+        return downloadsize * 100 / totalsize;
+    }
+
+    @Override
+    public String toString() {
+        return "GroupInfo{status=" + status + ", " + completed + "/" + count + " completed, "
+                + failed + " failed, " + downloadsize + "/" + totalsize + "}";
+    }
+}
@@ -0,0 +1,91 @@
+package com.callanna.rxload.data;
+
+/**
+ * 任务列表中一个任务的变化, 见 {@link com.callanna.rxload.RxLoad#getDownLoadingChanges(int)}.
+ * <p>
+ * 同一个时间段内一个任务的多次变化合并成一个, fields 是所有变化过的字段.
+ */
+public class ListChange {
+    public static final int INSERTED = 0x01;    //加入列表
+    public static final int REMOVED = 0x02;     //移出列表(删除或者状态不再符合)
+    public static final int UPDATED = 0x03;     //还在列表中, 部分字段变化
+
+    public static final int FIELD_STATUS = 0x01;
+    public static final int FIELD_DOWNLOAD_SIZE = 0x02;
+    public static final int FIELD_TOTAL_SIZE = 0x04;
+    public static final int FIELD_CONNECTIONS = 0x08;
+    public static final int FIELD_SAVE_PATH = 0x10;    //保存的文件名或者路径
+    public static final int FIELD_ALL = 0x1f;
+
+    private final int type;
+    private final int id;
+    private final int fields;
+    private final LoadInfo info;
+
+    public ListChange(int type, int id, int fields, LoadInfo info) {
+        this.type = type;
+        this.id = id;
+        this.fields = fields;
+        this.info = info;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return 变化的字段, 插入时为 {@link #FIELD_ALL}, 删除时为0
+     */
+    public int getFields() {
+        return fields;
+    }
+
+    public boolean changed(int field) {
+        return (fields & field) != 0;
+    }
+
+    /**
+     * @return 变化后的快照, 只需要读取变化的字段. 删除时是删除前最后的快照.
+     */
+    public LoadInfo getInfo() {
+        return info;
+    }
+
+    /**
+     * 比较两个快照
+     *
+     * @return 变化的字段
+     */
+    public static int diff(LoadInfo from, LoadInfo to) {
+        int fields = 0;
+        if (from.getStatus() != to.getStatus()) {
+            fields |= FIELD_STATUS;
+        }
+        if (from.getDownloadSize() != to.getDownloadSize()) {
+            fields |= FIELD_DOWNLOAD_SIZE;
+        }
+        if (from.getTotalSize() != to.getTotalSize()) {
+            fields |= FIELD_TOTAL_SIZE;
+        }
+        if (from.getConnections() != to.getConnections()) {
+            fields |= FIELD_CONNECTIONS;
+        }
+        if (!equals(from.getSavePath(), to.getSavePath()) || !equals(from.getSaveName(), to.getSaveName())) {
+            fields |= FIELD_SAVE_PATH;
+        }
+        return fields;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public String toString() {
+        return "ListChange{type=" + type + ", id=" + id + ", fields=" + Integer.toHexString(fields) + "}";
+    }
+}
@@ -32,6 +32,7 @@ public class LoadInfo  implements Parcelable {
         }
     };
 
+    private int id = -1;
     private int status = NORMAL;
     private String loadurl = "";
 
@@ -43,6 +44,8 @@ public class LoadInfo  implements Parcelable {
 
     private long totalsize;
 
+    private int connections;
+
     public LoadInfo() {
     }
 
@@ -65,6 +68,18 @@ public class LoadInfo  implements Parcelable {
         this.status = in.readInt();
         this.totalsize = in.readLong();
         this.downloadsize = in.readLong();
+        this.connections = in.readInt();
+    }
+
+    /**
+     * 任务的id, 按添加顺序递增, 分页查询时作为下一页的起点
+     */
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
     }
 
     public void setStatus(int status) {
@@ -117,6 +132,19 @@ public class LoadInfo  implements Parcelable {
         return downloadsize;
     }
 
+    /**
+     * 当前使用的连接数, 由下载过程中的测速决定
+     *
+     * @return 连接数
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
     public void setDownloadSize(long downloadSize) {
         this.downloadsize = downloadSize;
     }
@@ -253,6 +281,7 @@ public class LoadInfo  implements Parcelable {
         dest.writeInt(this.status);
         dest.writeLong(this.totalsize);
         dest.writeLong(this.downloadsize);
+        dest.writeInt(this.connections);
     }
 
 }
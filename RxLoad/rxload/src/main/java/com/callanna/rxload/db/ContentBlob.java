@@ -0,0 +1,75 @@
+package com.callanna.rxload.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+/**
+ * 内容存储中的一个已完成的文件, 按内容的标识(摘要或者 ETag 加长度)保存.
+ */
+public class ContentBlob {
+    private final String key;
+    private String path = "";
+    private long length;
+    private long lastUsed;          //上次使用的时间, 超过容量时最久没有使用的先删除
+
+    public ContentBlob(String key) {
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    public void setLastUsed(long lastUsed) {
+        this.lastUsed = lastUsed;
+    }
+
+    static ContentBlob read(Cursor cursor) {
+        ContentBlob blob = new ContentBlob(Db.getString(cursor, Db.ContentTable.COLUMN_KEY));
+        blob.setPath(Db.getString(cursor, Db.ContentTable.COLUMN_PATH));
+        blob.setLength(Db.getLong(cursor, Db.ContentTable.COLUMN_LENGTH));
+        blob.setLastUsed(Db.getLong(cursor, Db.ContentTable.COLUMN_LAST_USED));
+        return blob;
+    }
+
+    public static final class Builder {
+        private final ContentValues values = new ContentValues();
+
+        public Builder lastUsed(long lastUsed) {
+            values.put(Db.ContentTable.COLUMN_LAST_USED, lastUsed);
+            return this;
+        }
+
+        public Builder get(ContentBlob blob) {
+            values.put(Db.ContentTable.COLUMN_KEY, blob.getKey());
+            values.put(Db.ContentTable.COLUMN_PATH, blob.getPath());
+            values.put(Db.ContentTable.COLUMN_LENGTH, blob.getLength());
+            values.put(Db.ContentTable.COLUMN_LAST_USED, blob.getLastUsed());
+            return this;
+        }
+
+        public ContentValues build() {
+            return values;
+        }
+    }
+}
@@ -16,8 +16,39 @@ public class DBHelper extends SQLiteOpenHelper {
 
     @Override public void onCreate(SQLiteDatabase db) {
         db.execSQL(Db.DownLoadTable.CREATE);
+        db.execSQL(Db.DownLoadTable.CREATE_URL_INDEX);
+        db.execSQL(Db.MetadataTable.CREATE);
+        db.execSQL(Db.ContentTable.CREATE);
+    }
+
+    @Override public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        //下载线程写进度的同时界面可以读取, 读写不再互相等待
+        if (!db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
     }
 
     @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            db.execSQL(Db.MetadataTable.CREATE);
+        }
+        if (oldVersion < 3) {
+            db.execSQL(Db.DownLoadTable.ADD_ETAG);
+        }
+        if (oldVersion < 4) {
+            db.execSQL(Db.DownLoadTable.ADD_DIGEST);
+            if (oldVersion >= 2) {
+                //从1升级时上面用现在的 CREATE 建表, 已经有 digest 列
+                db.execSQL(Db.MetadataTable.ADD_DIGEST);
+            }
+        }
+        if (oldVersion < 5) {
+            db.execSQL(Db.DownLoadTable.DELETE_DUPLICATE_URL);
+            db.execSQL(Db.DownLoadTable.CREATE_URL_INDEX);
+        }
+        if (oldVersion < 6) {
+            db.execSQL(Db.ContentTable.CREATE);
+        }
     }
 }
@@ -2,12 +2,22 @@ package com.callanna.rxload.db;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 import com.squareup.sqlbrite2.BriteDatabase;
 import com.squareup.sqlbrite2.SqlBrite;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.reactivex.Observable;
 import io.reactivex.schedulers.Schedulers;
@@ -27,10 +37,36 @@ public class DBManager {
             "SELECT *  FROM " + Db.DownLoadTable.TABLE_NAME + " WHERE " + Db.DownLoadTable.COLUMN_DOWNLOAD_FLAG + " = ?  ORDER BY  "+Db.DownLoadTable.COLUMN_ID+" ASC";
 
 
+    private static final String QUERY_METADATA =
+            "SELECT *  FROM " + Db.MetadataTable.TABLE_NAME + " WHERE " + Db.MetadataTable.COLUMN_URL + " = ?";
+
+
+    private static final String QUERY_CONTENT =
+            "SELECT *  FROM " + Db.ContentTable.TABLE_NAME + " WHERE " + Db.ContentTable.COLUMN_KEY + " = ?";
+
+    private static final String QUERY_CONTENT_LRU =
+            "SELECT *  FROM " + Db.ContentTable.TABLE_NAME + " ORDER BY " + Db.ContentTable.COLUMN_LAST_USED + " ASC";
+
+    private static final String QUERY_CONTENT_SIZE =
+            "SELECT SUM(" + Db.ContentTable.COLUMN_LENGTH + ") FROM " + Db.ContentTable.TABLE_NAME;
+
+    private static final long STATUS_FLUSH_MILLIS = 1000;
+    private static final int MAX_QUERY_ARGS = 500;     //SQLite 一条语句最多999个参数
+
     private volatile static DBManager singleton;
     private DBHelper mDbOpenHelper;
     private BriteDatabase db;
     private SqlBrite sqlBrite;
+    //延迟写入的下载状态, 每个任务只保留最新的一次
+    private final Map<String, DownLoadStatus> pendingStatus = new ConcurrentHashMap<>();
+    private final Map<String, Integer> postedFlags = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    //最后一次立即写入的是结束状态的任务, 之后迟到的进度不再写入, 重新开始时清除
+    private final Set<String> stopped = new HashSet<>();
+    private final TaskRegistry registry = new TaskRegistry();
+    //进度和状态更新最频繁, 预编译一次重复使用, 只在 synchronized 方法中使用
+    private SQLiteStatement updateStatus;
+    private SQLiteStatement updateProgress;
 
 
 
@@ -39,6 +75,7 @@ public class DBManager {
         sqlBrite =  new SqlBrite.Builder().build();
         db = sqlBrite.wrapDatabaseHelper(mDbOpenHelper, Schedulers.io());
         db.setLoggingEnabled(false);
+        registry.load(loadAll());
     }
 
     public static DBManager getSingleton(Context context) {
@@ -52,6 +89,26 @@ public class DBManager {
         return singleton;
     }
 
+    /**
+     * 内存中的任务表, 观察下载状态时使用, 不查询数据库
+     */
+    public TaskRegistry registry() {
+        return registry;
+    }
+
+    private List<DownLoadBean> loadAll() {
+        List<DownLoadBean> beans = new ArrayList<>();
+        Cursor cursor = db.query(QUERY_ALL);
+        try {
+            while (cursor.moveToNext()) {
+                beans.add(DownLoadBean.read(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return beans;
+    }
+
     public synchronized Observable<List<DownLoadBean>> searchDownloadByAll(){
        return db.createQuery(Db.DownLoadTable.TABLE_NAME,QUERY_ALL)
                 .mapToList(DownLoadBean.MAPPER);
@@ -64,25 +121,9 @@ public class DBManager {
         List<DownLoadBean> downLoadBeanList = new LinkedList<>();
         Cursor cursor = db.query(QUERY_STATUS,status+"");
         while (cursor.moveToNext()){
-            String url = cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_URL));
-            DownLoadBean downLoadBean = new DownLoadBean(url);
-            DownLoadStatus downLoadStatus = new DownLoadStatus();
-            downLoadBean.setId(cursor.getInt(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_ID)));
-            downLoadStatus.setStatus(cursor.getInt(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_DOWNLOAD_FLAG)));
-            downLoadStatus.setDownloadSize(cursor.getInt(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_DOWNLOAD_SIZE)));
-            downLoadStatus.setTotalSize(cursor.getInt(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_TOTAL_SIZE)));
-            downLoadBean.setStatus(downLoadStatus);
-            downLoadBean.setSaveName(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_SAVE_NAME)));
-            downLoadBean.setIsSupportRange(cursor.getInt(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_RANGE))==1);
-            downLoadBean.setChanged(cursor.getInt(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_CHENGED)) == 1);
-            downLoadBean.setLastModify(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_LastModify)));
-            downLoadBean.setSavePath(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_SAVE_PATH)));
-            downLoadBean.setTempPath(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_TEMP_PATH)));
-            downLoadBean.setLmfPath(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_LMDF_PATH)));
-            downLoadBeanList.add(downLoadBean);
+            downLoadBeanList.add(DownLoadBean.read(cursor));
         }
         cursor.close();
-        db.close();
         return   Observable.just(downLoadBeanList);
     }
     public synchronized Observable<DownLoadBean>  searchDownloadByUrl(String url){
@@ -92,61 +133,243 @@ public class DBManager {
     public synchronized DownLoadBean  searchByUrl(String url){
         DownLoadBean downLoadBean = null;
         Cursor cursor = db.query(QUERY_URL,url);
-        if(cursor.getCount() >0){
-            downLoadBean = new DownLoadBean(url);
-            DownLoadStatus downLoadStatus = new DownLoadStatus();
-            cursor.moveToFirst();
-            downLoadBean.setId(cursor.getInt(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_ID)));
-            downLoadStatus.setStatus(cursor.getInt(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_DOWNLOAD_FLAG)));
-            downLoadStatus.setDownloadSize(cursor.getInt(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_DOWNLOAD_SIZE)));
-            downLoadStatus.setTotalSize(cursor.getInt(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_TOTAL_SIZE)));
-            downLoadBean.setStatus(downLoadStatus);
-            downLoadBean.setUrl(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_URL)));
-
-            downLoadBean.setSaveName(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_SAVE_NAME)));
-
-            downLoadBean.setIsSupportRange(cursor.getInt(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_RANGE))==1);
-
-            downLoadBean.setChanged(cursor.getInt(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_CHENGED)) == 1);
+        if(cursor.moveToFirst()){
+            downLoadBean = DownLoadBean.read(cursor);
+        }
+        cursor.close();
+        return   downLoadBean;
+    }
 
-            downLoadBean.setLastModify(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_LastModify)));
+    public synchronized void add(DownLoadBean bean){
+        if (insert(bean)) {
+            registry.put(bean);
+        }
+    }
 
-            downLoadBean.setSavePath(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_SAVE_PATH)));
+    /**
+     * 批量入队: 去掉重复的url, 已经存在的任务按 url IN (...) 分批读出,
+     * 其它的在一个事务中添加.
+     *
+     * @param saveName 新任务的文件名, 为空时由服务器返回的信息决定
+     * @return 按 urls 的顺序, 每个url一个
+     */
+    public synchronized List<DownLoadBean> enqueue(List<String> urls, String saveName){
+        Map<String, DownLoadBean> beans = new LinkedHashMap<>(urls.size() * 2);
+        List<String> existing = new ArrayList<>();
+        List<DownLoadBean> added = new ArrayList<>();
+        for (String url : urls) {
+            if (beans.containsKey(url)) {
+                continue;
+            }
+            if (registry.id(url) != -1) {
+                beans.put(url, null);
+                existing.add(url);
+            } else {
+                DownLoadBean bean = new DownLoadBean(url);
+                bean.setSaveName(saveName);
+                beans.put(url, bean);
+                added.add(bean);
+            }
+        }
+        for (int from = 0; from < existing.size(); from += MAX_QUERY_ARGS) {
+            List<String> chunk = existing.subList(from, Math.min(from + MAX_QUERY_ARGS, existing.size()));
+            Cursor cursor = db.query(queryUrls(chunk.size()), chunk.toArray(new String[chunk.size()]));
+            try {
+                while (cursor.moveToNext()) {
+                    DownLoadBean bean = DownLoadBean.read(cursor);
+                    beans.put(bean.getUrl(), bean);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        addAll(added);
+        List<DownLoadBean> result = new ArrayList<>(beans.size());
+        for (DownLoadBean bean : beans.values()) {
+            if (bean != null) {
+                result.add(bean);
+            }
+        }
+        return result;
+    }
 
-            downLoadBean.setTempPath(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_TEMP_PATH)));
-            downLoadBean.setLmfPath(cursor.getString(cursor.getColumnIndex(Db.DownLoadTable.COLUMN_LMDF_PATH)));
+    private static String queryUrls(int count) {
+        StringBuilder sql = new StringBuilder("SELECT * FROM ").append(Db.DownLoadTable.TABLE_NAME)
+                .append(" WHERE ").append(Db.DownLoadTable.COLUMN_URL).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return sql.append(")").toString();
+    }
 
+    /**
+     * 在一个事务中添加多条记录, 只提交一次, 也只通知一次查询更新.
+     */
+    public synchronized void addAll(List<DownLoadBean> beans){
+        if (beans.isEmpty()) {
+            return;
+        }
+        BriteDatabase.Transaction transaction = db.newTransaction();
+        try {
+            for (DownLoadBean bean : beans) {
+                if (insert(bean)) {
+                    registry.put(bean);
+                }
+            }
+            transaction.markSuccessful();
+        } finally {
+            transaction.end();
         }
-        cursor.close();
-        db.close();
-        return   downLoadBean;
     }
 
-    public synchronized void add(DownLoadBean bean){
-       db.insert(Db.DownLoadTable.TABLE_NAME,new DownLoadBean.Builder().get(bean).build());
+    /**
+     * url 有唯一索引, 已经存在时不插入, 使用已有记录的id
+     *
+     * @return 是否插入了新记录
+     */
+    private boolean insert(DownLoadBean bean){
+        long id = db.insert(Db.DownLoadTable.TABLE_NAME, new DownLoadBean.Builder().get(bean).build(),
+                SQLiteDatabase.CONFLICT_IGNORE);
+        if (id == -1) {
+            bean.setId(registry.id(bean.getUrl()));
+            return false;
+        }
+        bean.setId((int) id);
+        return true;
     }
 
     public synchronized void update(DownLoadBean bean){
         db.update(Db.DownLoadTable.TABLE_NAME,new DownLoadBean.Builder().get(bean).build(),
                 Db.DownLoadTable.COLUMN_ID +" = ? ", String.valueOf(bean.getId()));
+        registry.put(bean);
     }
+    /**
+     * 立即写入状态, 还没写入的进度一起写入
+     */
     public synchronized void updateStatusByUrl(String url, int flag){
-        db.update(Db.DownLoadTable.TABLE_NAME,new DownLoadBean.Builder().status(flag).build(),
-                Db.DownLoadTable.COLUMN_URL +" = ? ",url);
+        stopped(url, flag);
+        postedFlags.remove(url);
+        DownLoadStatus pending = pendingStatus.remove(url);
+        if (pending != null) {
+            writeStatus(url, new DownLoadStatus(flag, pending.getDownloadSize(), pending.getTotalSize()));
+        } else {
+            if (updateStatus == null) {
+                updateStatus = db.getWritableDatabase().compileStatement(Db.DownLoadTable.UPDATE_STATUS);
+            }
+            updateStatus.bindLong(1, flag);
+            updateStatus.bindString(2, url);
+            db.executeUpdateDelete(Db.DownLoadTable.TABLE_NAME, updateStatus);
+        }
+        registry.status(url, flag);
     }
+
+    /**
+     * 立即写入状态, 丢弃还没写入的旧状态
+     */
     public synchronized void updateStatusByUrl(String url, DownLoadStatus flag){
-        db.update(Db.DownLoadTable.TABLE_NAME,new DownLoadBean.Builder()
-                        .status(flag.getStatus())
-                        .downSize((int) flag.getDownloadSize())
-                        .totalSize((int) flag.getTotalSize()).build(),
-                Db.DownLoadTable.COLUMN_URL +" = ? ",url);
+        stopped(url, flag.getStatus());
+        postedFlags.remove(url);
+        pendingStatus.remove(url);
+        writeStatus(url, flag);
+        registry.status(url, flag);
+    }
+
+    /**
+     * 任务开始下载, 之后的进度可以写入
+     */
+    public synchronized void startStatus(String url){
+        stopped.remove(url);
+    }
+
+    /**
+     * 延迟写入下载状态. 同一个任务只保留最新的一次, 每隔 {@link #STATUS_FLUSH_MILLIS}
+     * 在一个事务中批量写入; 状态改变时尽快写入, 结束状态(完成, 失败, 暂停, 取消)立即写入.
+     * 任务已经结束(比如暂停之后还在写入的连接)时, 不是结束状态的进度直接丢弃,
+     * 直到 {@link #startStatus(String)}.
+     */
+    public synchronized void postStatus(String url, DownLoadStatus status){
+        int flag = status.getStatus();
+        if (terminal(flag)) {
+            updateStatusByUrl(url, status);
+            return;
+        }
+        if (stopped.contains(url)) {
+            return;
+        }
+        registry.status(url, status);
+        pendingStatus.put(url, status);
+        Integer posted = postedFlags.put(url, flag);
+        scheduleFlush(posted == null || posted != flag ? 0 : STATUS_FLUSH_MILLIS);
+    }
+
+    /**
+     * 写入所有延迟的状态
+     */
+    public synchronized void flushStatus(){
+        flushScheduled.set(false);
+        if (pendingStatus.isEmpty()) {
+            return;
+        }
+        List<String> urls = new ArrayList<>(pendingStatus.keySet());
+        BriteDatabase.Transaction transaction = db.newTransaction();
+        try {
+            for (String url : urls) {
+                DownLoadStatus status = pendingStatus.remove(url);
+                if (status != null) {
+                    writeStatus(url, status);
+                }
+            }
+            transaction.markSuccessful();
+        } finally {
+            transaction.end();
+        }
+    }
+
+    private void scheduleFlush(long delay){
+        if (delay == 0 || flushScheduled.compareAndSet(false, true)) {
+            Schedulers.io().scheduleDirect(new Runnable() {
+                @Override
+                public void run() {
+                    flushStatus();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void stopped(String url, int flag){
+        if (terminal(flag)) {
+            stopped.add(url);
+        } else {
+            stopped.remove(url);
+        }
+    }
+
+    private static boolean terminal(int flag){
+        return flag == DownLoadStatus.COMPLETED || flag == DownLoadStatus.FAILED
+                || flag == DownLoadStatus.PAUSED || flag == DownLoadStatus.CANCELED;
+    }
+
+    private void writeStatus(String url, DownLoadStatus flag){
+        if (updateProgress == null) {
+            updateProgress = db.getWritableDatabase().compileStatement(Db.DownLoadTable.UPDATE_PROGRESS);
+        }
+        updateProgress.bindLong(1, flag.getStatus());
+        updateProgress.bindLong(2, flag.getDownloadSize());
+        updateProgress.bindLong(3, flag.getTotalSize());
+        updateProgress.bindString(4, url);
+        db.executeUpdateDelete(Db.DownLoadTable.TABLE_NAME, updateProgress);
     }
     public synchronized void delete(String url){
+        stopped.remove(url);
+        postedFlags.remove(url);
+        pendingStatus.remove(url);
         db.delete(Db.DownLoadTable.TABLE_NAME, Db.DownLoadTable.COLUMN_URL +" = ? ",url);
+        registry.remove(url);
     }
 
     public synchronized void deleteWaiting(){
         db.delete(Db.DownLoadTable.TABLE_NAME, Db.DownLoadTable.COLUMN_DOWNLOAD_FLAG +" != ? ", String.valueOf(DownLoadStatus.COMPLETED));
+        registry.removeExcept(DownLoadStatus.COMPLETED);
     }
 
     public synchronized boolean recordNotExists(String url) {
@@ -156,6 +379,8 @@ public class DBManager {
     }
 
     public synchronized void clearStatusByUrl(String url) {
+        postedFlags.remove(url);
+        pendingStatus.remove(url);
         db.update(Db.DownLoadTable.TABLE_NAME,new DownLoadBean.Builder()
                         .saveName("")
                         .savePath("")
@@ -165,5 +390,91 @@ public class DBManager {
                         .downSize(0)
                         .totalSize(0).build(),
                 Db.DownLoadTable.COLUMN_URL +" = ? ",url);
+        registry.clear(url);
+    }
+
+    public synchronized FileMetadata searchMetadata(String url) {
+        Cursor cursor = db.query(QUERY_METADATA, url);
+        try {
+            return cursor.moveToFirst() ? FileMetadata.read(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public synchronized void saveMetadata(FileMetadata metadata) {
+        db.insert(Db.MetadataTable.TABLE_NAME, new FileMetadata.Builder().get(metadata).build(),
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * 服务器确认文件没有变化, 只更新确认时间
+     */
+    public synchronized void touchMetadata(String url, long checkedAt) {
+        db.update(Db.MetadataTable.TABLE_NAME, new FileMetadata.Builder().checkedAt(checkedAt).build(),
+                Db.MetadataTable.COLUMN_URL + " = ? ", url);
+    }
+
+    public synchronized void deleteMetadata(String url) {
+        db.delete(Db.MetadataTable.TABLE_NAME, Db.MetadataTable.COLUMN_URL + " = ? ", url);
+    }
+
+    /**
+     * 删除 time 之前确认的文件信息
+     */
+    public synchronized void deleteMetadataBefore(long time) {
+        db.delete(Db.MetadataTable.TABLE_NAME, Db.MetadataTable.COLUMN_CHECKED_AT + " < ? ",
+                String.valueOf(time));
+    }
+
+    public synchronized ContentBlob searchContent(String key) {
+        Cursor cursor = db.query(QUERY_CONTENT, key);
+        try {
+            return cursor.moveToFirst() ? ContentBlob.read(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return 按最近使用时间排列, 最久没有使用的在前面
+     */
+    public synchronized List<ContentBlob> searchContentByLastUsed() {
+        List<ContentBlob> blobs = new ArrayList<>();
+        Cursor cursor = db.query(QUERY_CONTENT_LRU);
+        try {
+            while (cursor.moveToNext()) {
+                blobs.add(ContentBlob.read(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return blobs;
+    }
+
+    /**
+     * @return 所有保存的内容的总长度
+     */
+    public synchronized long contentSize() {
+        Cursor cursor = db.query(QUERY_CONTENT_SIZE);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public synchronized void saveContent(ContentBlob blob) {
+        db.insert(Db.ContentTable.TABLE_NAME, new ContentBlob.Builder().get(blob).build(),
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public synchronized void touchContent(String key, long lastUsed) {
+        db.update(Db.ContentTable.TABLE_NAME, new ContentBlob.Builder().lastUsed(lastUsed).build(),
+                Db.ContentTable.COLUMN_KEY + " = ? ", key);
+    }
+
+    public synchronized void deleteContent(String key) {
+        db.delete(Db.ContentTable.TABLE_NAME, Db.ContentTable.COLUMN_KEY + " = ? ", key);
     }
 }
@@ -7,7 +7,7 @@ import android.database.Cursor;
  */
 
 public class Db {
-    public static final int VERSION = 1;
+    public static final int VERSION = 6;
     public static final int BOOLEAN_FALSE = 0;
     public static final int BOOLEAN_TRUE = 1;
     public static final String DBNAME = "download.db";
@@ -26,6 +26,8 @@ public class Db {
         static final String COLUMN_LastModify = "lastmodify";
         static final String COLUMN_RANGE = "range";
         public static final String COLUMN_CHENGED = "ischanged";
+        static final String COLUMN_ETAG = "etag";
+        static final String COLUMN_DIGEST = "digest";
         static final String CREATE =
                 "CREATE TABLE " + TABLE_NAME + " (" +
                         COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -39,11 +41,69 @@ public class Db {
                         COLUMN_DOWNLOAD_SIZE + " NUMERIC," +
                         COLUMN_RANGE + " INTEGER, "+
                         COLUMN_CHENGED + " INTEGER, "+
+                        COLUMN_ETAG + " TEXT, "+
+                        COLUMN_DIGEST + " TEXT, "+
                         COLUMN_DOWNLOAD_FLAG + " INTEGER " +
                         " )";
+        static final String ADD_ETAG =
+                "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_ETAG + " TEXT";
+        static final String ADD_DIGEST =
+                "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_DIGEST + " TEXT";
+        //同一个url只保留最后添加的一条, 建唯一索引之前执行
+        static final String DELETE_DUPLICATE_URL =
+                "DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_ID + " NOT IN (SELECT MAX(" + COLUMN_ID
+                        + ") FROM " + TABLE_NAME + " GROUP BY " + COLUMN_URL + ")";
+        static final String CREATE_URL_INDEX =
+                "CREATE UNIQUE INDEX IF NOT EXISTS idx_download_url ON " + TABLE_NAME + " (" + COLUMN_URL + ")";
+        static final String UPDATE_STATUS =
+                "UPDATE " + TABLE_NAME + " SET " + COLUMN_DOWNLOAD_FLAG + " = ? WHERE " + COLUMN_URL + " = ?";
+        static final String UPDATE_PROGRESS =
+                "UPDATE " + TABLE_NAME + " SET " + COLUMN_DOWNLOAD_FLAG + " = ?, " + COLUMN_DOWNLOAD_SIZE + " = ?, "
+                        + COLUMN_TOTAL_SIZE + " = ? WHERE " + COLUMN_URL + " = ?";
+    }
 
+    static final class MetadataTable {
+        static final String TABLE_NAME = "tb_metadata";
 
+        static final String COLUMN_URL = "url";
+        static final String COLUMN_LOCATION = "location";
+        static final String COLUMN_FILE_NAME = "file_name";
+        static final String COLUMN_LENGTH = "length";
+        static final String COLUMN_ETAG = "etag";
+        static final String COLUMN_LAST_MODIFY = "lastmodify";
+        static final String COLUMN_RANGE = "range";
+        static final String COLUMN_CHECKED_AT = "checked_at";
+        static final String COLUMN_DIGEST = "digest";
+        static final String CREATE =
+                "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                        COLUMN_URL + " TEXT PRIMARY KEY," +
+                        COLUMN_LOCATION + " TEXT," +
+                        COLUMN_FILE_NAME + " TEXT," +
+                        COLUMN_LENGTH + " INTEGER," +
+                        COLUMN_ETAG + " TEXT," +
+                        COLUMN_LAST_MODIFY + " TEXT," +
+                        COLUMN_RANGE + " INTEGER," +
+                        COLUMN_CHECKED_AT + " INTEGER," +
+                        COLUMN_DIGEST + " TEXT" +
+                        " )";
+        static final String ADD_DIGEST =
+                "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_DIGEST + " TEXT";
+    }
+
+    static final class ContentTable {
+        static final String TABLE_NAME = "tb_content";
 
+        static final String COLUMN_KEY = "content_key";
+        static final String COLUMN_PATH = "path";
+        static final String COLUMN_LENGTH = "length";
+        static final String COLUMN_LAST_USED = "last_used";
+        static final String CREATE =
+                "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                        COLUMN_KEY + " TEXT PRIMARY KEY," +
+                        COLUMN_PATH + " TEXT," +
+                        COLUMN_LENGTH + " INTEGER," +
+                        COLUMN_LAST_USED + " INTEGER" +
+                        " )";
     }
     public static String getString(Cursor cursor, String columnName) {
         return cursor.getString(cursor.getColumnIndexOrThrow(columnName));
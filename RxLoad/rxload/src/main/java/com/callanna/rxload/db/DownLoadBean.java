@@ -21,8 +21,11 @@ public class DownLoadBean {
     private String lmfPath = "";
     private DownLoadStatus status;
     private String lastModify ="";
+    private String etag = "";
+    private String digest = "";     //期望的摘要, 见 DigestSpec#encode
     private boolean isSupportRange;
     private boolean isChanged;
+    private int writeMode;
 
     public DownLoadBean(String url, String saveName, String savePath) {
         this.url = url;
@@ -137,25 +140,78 @@ public class DownLoadBean {
         isChanged = changed;
     }
 
+    public int getWriteMode() {
+        return writeMode;
+    }
+
+    /**
+     * 选择写入方式, 只对本次下载有效, 不保存到数据库.
+     *
+     * @param writeMode {@link com.callanna.rxload.file.FileHelper#WRITE_BUFFERED} 或
+     *                  {@link com.callanna.rxload.file.FileHelper#WRITE_DIRECT}
+     */
+    public void setWriteMode(int writeMode) {
+        this.writeMode = writeMode;
+    }
+
     public static final Function<Cursor, DownLoadBean> MAPPER = new Function<Cursor, DownLoadBean>() {
         @Override
         public DownLoadBean apply(@NonNull Cursor cursor) throws Exception {
-            int id = Db.getInt(cursor,Db.DownLoadTable.COLUMN_ID);
-            String url =  Db.getString(cursor,Db.DownLoadTable.COLUMN_URL);
-            String name =  Db.getString(cursor,Db.DownLoadTable.COLUMN_SAVE_NAME);
-            String path =  Db.getString(cursor,Db.DownLoadTable.COLUMN_SAVE_PATH);
-            String tpath =  Db.getString(cursor,Db.DownLoadTable.COLUMN_TEMP_PATH);
-            String lpath =  Db.getString(cursor,Db.DownLoadTable.COLUMN_LMDF_PATH);
-            int flag = Db.getInt(cursor,Db.DownLoadTable.COLUMN_DOWNLOAD_FLAG);
-            long  downloadsize = Db.getInt(cursor,Db.DownLoadTable.COLUMN_DOWNLOAD_SIZE);
-            long  totlesize = Db.getInt(cursor,Db.DownLoadTable.COLUMN_TOTAL_SIZE);
-            String LastModify = Db.getString(cursor,Db.DownLoadTable.COLUMN_LastModify);
-            boolean isRange = Db.getInt(cursor,Db.DownLoadTable.COLUMN_RANGE)==1 ;
-            boolean isChanged = Db.getInt(cursor,Db.DownLoadTable.COLUMN_CHENGED)==1 ;
-            return new DownLoadBean(id,url,name,path,tpath,lpath,new DownLoadStatus(flag,downloadsize,totlesize),LastModify,isRange,isChanged);
+            return read(cursor);
         }
     };
 
+    //最近一次查询结果的列位置
+    private static volatile Columns columns;
+
+    /**
+     * 读取当前行. 列的位置每个查询结果只查找一次, 之后每一行直接按位置读取.
+     */
+    static DownLoadBean read(Cursor cursor) {
+        Columns c = columns;
+        String[] names = cursor.getColumnNames();
+        if (c == null || c.names != names) {
+            c = new Columns(cursor, names);
+            columns = c;
+        }
+        DownLoadBean bean = new DownLoadBean(cursor.getInt(c.id), cursor.getString(c.url),
+                cursor.getString(c.saveName), cursor.getString(c.savePath),
+                cursor.getString(c.tempPath), cursor.getString(c.lmfPath),
+                new DownLoadStatus(cursor.getInt(c.flag), cursor.getLong(c.downloadSize), cursor.getLong(c.totalSize)),
+                cursor.getString(c.lastModify),
+                cursor.getInt(c.range) == Db.BOOLEAN_TRUE, cursor.getInt(c.changed) == Db.BOOLEAN_TRUE);
+        bean.setEtag(cursor.getString(c.etag));
+        bean.setDigest(cursor.getString(c.digest));
+        return bean;
+    }
+
+    /**
+     * tb_download 的列位置. 升级过的数据库中新加的列在最后, 所以不能写死, 按查询结果查找.
+     */
+    private static final class Columns {
+        final String[] names;
+        final int id, url, saveName, savePath, tempPath, lmfPath;
+        final int flag, downloadSize, totalSize, lastModify, range, changed, etag, digest;
+
+        Columns(Cursor cursor, String[] names) {
+            this.names = names;
+            id = cursor.getColumnIndexOrThrow(Db.DownLoadTable.COLUMN_ID);
+            url = cursor.getColumnIndexOrThrow(Db.DownLoadTable.COLUMN_URL);
+            saveName = cursor.getColumnIndexOrThrow(Db.DownLoadTable.COLUMN_SAVE_NAME);
+            savePath = cursor.getColumnIndexOrThrow(Db.DownLoadTable.COLUMN_SAVE_PATH);
+            tempPath = cursor.getColumnIndexOrThrow(Db.DownLoadTable.COLUMN_TEMP_PATH);
+            lmfPath = cursor.getColumnIndexOrThrow(Db.DownLoadTable.COLUMN_LMDF_PATH);
+            flag = cursor.getColumnIndexOrThrow(Db.DownLoadTable.COLUMN_DOWNLOAD_FLAG);
+            downloadSize = cursor.getColumnIndexOrThrow(Db.DownLoadTable.COLUMN_DOWNLOAD_SIZE);
+            totalSize = cursor.getColumnIndexOrThrow(Db.DownLoadTable.COLUMN_TOTAL_SIZE);
+            lastModify = cursor.getColumnIndexOrThrow(Db.DownLoadTable.COLUMN_LastModify);
+            range = cursor.getColumnIndexOrThrow(Db.DownLoadTable.COLUMN_RANGE);
+            changed = cursor.getColumnIndexOrThrow(Db.DownLoadTable.COLUMN_CHENGED);
+            etag = cursor.getColumnIndexOrThrow(Db.DownLoadTable.COLUMN_ETAG);
+            digest = cursor.getColumnIndexOrThrow(Db.DownLoadTable.COLUMN_DIGEST);
+        }
+    }
+
     public void setLastModify(String s) {
        this.lastModify = s;
     }
@@ -164,12 +220,30 @@ public class DownLoadBean {
         return lastModify;
     }
 
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag == null ? "" : etag;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(String digest) {
+        this.digest = digest == null ? "" : digest;
+    }
+
 
     public LoadInfo toLoadInfo(){
         LoadInfo loadInfo = new LoadInfo();
+        loadInfo.setId(getId());
         loadInfo.setStatus(getStatus().getStatus());
         loadInfo.setDownloadSize(getStatus().getDownloadSize());
         loadInfo.setTotalSize(getStatus().getTotalSize());
+        loadInfo.setConnections(getStatus().getConnections());
         loadInfo.setLoadurl(getUrl());
         loadInfo.setSavePath(getSavePath());
         loadInfo.setSaveName(getSaveName());
@@ -204,11 +278,11 @@ public class DownLoadBean {
             values.put(Db.DownLoadTable.COLUMN_DOWNLOAD_FLAG, status);
             return this;
         }
-        public Builder downSize(int size){
+        public Builder downSize(long size){
             values.put(Db.DownLoadTable.COLUMN_DOWNLOAD_SIZE, size);
             return this;
         }
-        public Builder totalSize(int size){
+        public Builder totalSize(long size){
             values.put(Db.DownLoadTable.COLUMN_TOTAL_SIZE, size);
             return this;
         }
@@ -235,6 +309,8 @@ public class DownLoadBean {
             values.put(Db.DownLoadTable.COLUMN_LastModify, bean.getLastModify());
             values.put(Db.DownLoadTable.COLUMN_RANGE, bean.getIsSupportRange());
             values.put(Db.DownLoadTable.COLUMN_CHENGED, bean.isChanged());
+            values.put(Db.DownLoadTable.COLUMN_ETAG, bean.getEtag());
+            values.put(Db.DownLoadTable.COLUMN_DIGEST, bean.getDigest());
             return this;
         }
 
@@ -38,6 +38,8 @@ public class DownLoadStatus implements Parcelable {
 
     private long totalsize;
 
+    private int connections;
+
 
 
     public DownLoadStatus() {
@@ -62,6 +64,7 @@ public class DownLoadStatus implements Parcelable {
         this.status = in.readInt();
         this.totalsize = in.readLong();
         this.downloadsize = in.readLong();
+        this.connections = in.readInt();
     }
 
     public void setStatus(int status) {
@@ -114,6 +117,19 @@ public class DownLoadStatus implements Parcelable {
         return downloadsize;
     }
 
+    /**
+     * 当前使用的连接数, 由下载过程中的测速决定
+     *
+     * @return 连接数
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
     public void setDownloadSize(long downloadSize) {
         this.downloadsize = downloadSize;
     }
@@ -210,5 +226,6 @@ public class DownLoadStatus implements Parcelable {
         dest.writeInt(this.status);
         dest.writeLong(this.totalsize);
         dest.writeLong(this.downloadsize);
+        dest.writeInt(this.connections);
     }
 }
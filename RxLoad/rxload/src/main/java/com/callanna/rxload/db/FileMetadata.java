@@ -0,0 +1,140 @@
+package com.callanna.rxload.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import io.reactivex.annotations.NonNull;
+import io.reactivex.functions.Function;
+
+/**
+ * 文件信息缓存, 保存 HEAD 响应中的文件属性, 避免重复检查.
+ */
+public class FileMetadata {
+    private String url = "";
+    private String location = "";  //重定向之后的地址
+    private String fileName = "";
+    private long length = -1;
+    private String etag = "";
+    private String lastModify = "";
+    private boolean isSupportRange;
+    private long checkedAt;         //上次向服务器确认的时间
+    private String digest = "";     //响应头中的摘要, 见 DigestSpec#encode
+
+    public FileMetadata(String url) {
+        this.url = url;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public void setLocation(String location) {
+        this.location = location;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    public String getLastModify() {
+        return lastModify;
+    }
+
+    public void setLastModify(String lastModify) {
+        this.lastModify = lastModify;
+    }
+
+    public boolean getIsSupportRange() {
+        return isSupportRange;
+    }
+
+    public void setIsSupportRange(boolean isSupportRange) {
+        this.isSupportRange = isSupportRange;
+    }
+
+    public long getCheckedAt() {
+        return checkedAt;
+    }
+
+    public void setCheckedAt(long checkedAt) {
+        this.checkedAt = checkedAt;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(String digest) {
+        this.digest = digest == null ? "" : digest;
+    }
+
+    public static final Function<Cursor, FileMetadata> MAPPER = new Function<Cursor, FileMetadata>() {
+        @Override
+        public FileMetadata apply(@NonNull Cursor cursor) throws Exception {
+            return read(cursor);
+        }
+    };
+
+    static FileMetadata read(Cursor cursor) {
+        FileMetadata metadata = new FileMetadata(Db.getString(cursor, Db.MetadataTable.COLUMN_URL));
+        metadata.setLocation(Db.getString(cursor, Db.MetadataTable.COLUMN_LOCATION));
+        metadata.setFileName(Db.getString(cursor, Db.MetadataTable.COLUMN_FILE_NAME));
+        metadata.setLength(Db.getLong(cursor, Db.MetadataTable.COLUMN_LENGTH));
+        metadata.setEtag(Db.getString(cursor, Db.MetadataTable.COLUMN_ETAG));
+        metadata.setLastModify(Db.getString(cursor, Db.MetadataTable.COLUMN_LAST_MODIFY));
+        metadata.setIsSupportRange(Db.getBoolean(cursor, Db.MetadataTable.COLUMN_RANGE));
+        metadata.setCheckedAt(Db.getLong(cursor, Db.MetadataTable.COLUMN_CHECKED_AT));
+        metadata.setDigest(Db.getString(cursor, Db.MetadataTable.COLUMN_DIGEST));
+        return metadata;
+    }
+
+    public static final class Builder {
+        private final ContentValues values = new ContentValues();
+
+        public Builder checkedAt(long checkedAt) {
+            values.put(Db.MetadataTable.COLUMN_CHECKED_AT, checkedAt);
+            return this;
+        }
+
+        public Builder get(FileMetadata metadata) {
+            values.put(Db.MetadataTable.COLUMN_URL, metadata.getUrl());
+            values.put(Db.MetadataTable.COLUMN_LOCATION, metadata.getLocation());
+            values.put(Db.MetadataTable.COLUMN_FILE_NAME, metadata.getFileName());
+            values.put(Db.MetadataTable.COLUMN_LENGTH, metadata.getLength());
+            values.put(Db.MetadataTable.COLUMN_ETAG, metadata.getEtag());
+            values.put(Db.MetadataTable.COLUMN_LAST_MODIFY, metadata.getLastModify());
+            values.put(Db.MetadataTable.COLUMN_RANGE, metadata.getIsSupportRange());
+            values.put(Db.MetadataTable.COLUMN_CHECKED_AT, metadata.getCheckedAt());
+            values.put(Db.MetadataTable.COLUMN_DIGEST, metadata.getDigest());
+            return this;
+        }
+
+        public ContentValues build() {
+            return values;
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package com.callanna.rxload.db;
+
+import com.callanna.rxload.data.ListChange;
+import com.callanna.rxload.data.LoadInfo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Flowable;
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.annotations.NonNull;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Function;
+import io.reactivex.functions.Predicate;
+import io.reactivex.subjects.BehaviorSubject;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+
+/**
+ * 内存中的任务表, 是下载状态的唯一来源, 数据库只负责持久化.
+ * <p>
+ * {@link DBManager} 的每次写入同时更新这里, 进度更新只写这里, 由数据库延迟写入.
+ * 观察者订阅内存中的快照, 不查询数据库: 有观察者的任务一个 BehaviorSubject, 最后一个观察者取消时移除,
+ * 列表在有变化时重新生成.
+ * 发布出去的 LoadInfo 不会再被修改, 每次变化都是新的对象.
+ * <p>
+ * 任务同时按id排序索引, 列表按id分页(keyset), 每一页只在它包含的任务变化时重新发送.
+ * 也可以只订阅变化({@link #observeChanges(int)}), 不用每次都拿到整个列表.
+ * 列表, 分页和变化都由同一个变化通知驱动, 没有变化时不做任何事.
+ */
+public class TaskRegistry {
+    private static final long LIST_THROTTLE_MILLIS = 1000;
+
+    private final Map<String, Entry> tasks = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Entry> byId = new ConcurrentSkipListMap<>();
+    private final Map<String, Watch> watches = new ConcurrentHashMap<>(); //有观察者的任务
+    private final Subject<Integer> changes = PublishSubject.<Integer>create().toSerialized(); //变化的任务id
+    private final List<ChangeCollector> collectors = new CopyOnWriteArrayList<>();
+
+    TaskRegistry() {
+    }
+
+    /**
+     * 从数据库加载所有任务, 启动时调用一次
+     */
+    synchronized void load(List<DownLoadBean> beans) {
+        for (DownLoadBean bean : beans) {
+            Entry entry = new Entry(bean.getId(), bean.toLoadInfo());
+            tasks.put(bean.getUrl(), entry);
+            byId.put(entry.id, entry);
+        }
+    }
+
+    /**
+     * 添加或者整体更新一个任务
+     */
+    synchronized void put(DownLoadBean bean) {
+        Entry old = tasks.get(bean.getUrl());
+        LoadInfo info = bean.toLoadInfo();
+        if (old != null && info.getConnections() == 0) {
+            info.setConnections(old.info.getConnections());
+        }
+        int id = old == null ? bean.getId() : old.id;
+        info.setId(id);
+        publish(bean.getUrl(), new Entry(id, info));
+    }
+
+    /**
+     * 更新状态和进度
+     */
+    synchronized void status(String url, DownLoadStatus status) {
+        Entry old = tasks.get(url);
+        if (old == null) {
+            return;
+        }
+        LoadInfo info = copy(old.info);
+        info.setStatus(status.getStatus());
+        info.setDownloadSize(status.getDownloadSize());
+        info.setTotalSize(status.getTotalSize());
+        info.setConnections(status.getConnections());
+        publish(url, new Entry(old.id, info));
+    }
+
+    /**
+     * 只更新状态, 进度不变
+     */
+    synchronized void status(String url, int flag) {
+        Entry old = tasks.get(url);
+        if (old == null) {
+            return;
+        }
+        LoadInfo info = copy(old.info);
+        info.setStatus(flag);
+        publish(url, new Entry(old.id, info));
+    }
+
+    /**
+     * 清除下载记录, 任务回到未下载的状态
+     */
+    synchronized void clear(String url) {
+        Entry old = tasks.get(url);
+        if (old == null) {
+            return;
+        }
+        LoadInfo info = new LoadInfo(DownLoadStatus.NORMAL);
+        info.setId(old.id);
+        info.setLoadurl(url);
+        publish(url, new Entry(old.id, info));
+    }
+
+    synchronized void remove(String url) {
+        Entry old = tasks.remove(url);
+        if (old != null) {
+            byId.remove(old.id);
+            for (ChangeCollector each : collectors) {
+                each.add(old.id, old.info, null);
+            }
+            Watch watch = watches.get(url);
+            if (watch != null) {
+                LoadInfo info = new LoadInfo(DownLoadStatus.NORMAL);
+                info.setLoadurl(url);
+                watch.subject.onNext(info);
+            }
+            changes.onNext(old.id);
+        }
+    }
+
+    /**
+     * 删除除了 keepStatus 之外的所有任务
+     */
+    synchronized void removeExcept(int keepStatus) {
+        for (Map.Entry<String, Entry> each : tasks.entrySet()) {
+            if (each.getValue().info.getStatus() != keepStatus) {
+                remove(each.getKey());
+            }
+        }
+    }
+
+    /**
+     * @return 数据库中的id, 没有这个任务时返回-1
+     */
+    int id(String url) {
+        Entry entry = tasks.get(url);
+        return entry == null ? -1 : entry.id;
+    }
+
+    /**
+     * 当前的快照
+     *
+     * @return 没有这个任务时返回null
+     */
+    public LoadInfo get(String url) {
+        Entry entry = tasks.get(url);
+        return entry == null ? null : entry.info;
+    }
+
+    /**
+     * 按添加顺序排列的所有任务
+     */
+    public List<LoadInfo> list() {
+        return list(-1);
+    }
+
+    /**
+     * @param status 只返回这个状态的任务, -1 表示全部
+     */
+    public List<LoadInfo> list(int status) {
+        return page(-1, Integer.MAX_VALUE, status);
+    }
+
+    /**
+     * 按id分页, 从 afterId 之后开始, 不需要跳过前面的任务.
+     *
+     * @param afterId 上一页最后一个任务的id, 第一页为-1
+     * @param limit   每页最多的任务数
+     * @param status  只包含这个状态的任务, -1 表示全部
+     */
+    public List<LoadInfo> page(int afterId, int limit, int status) {
+        List<LoadInfo> infos = new ArrayList<>(Math.min(limit, 64));
+        for (Entry each : byId.tailMap(afterId, false).values()) {
+            if (infos.size() >= limit) {
+                break;
+            }
+            if (status == -1 || each.info.getStatus() == status) {
+                infos.add(each.info);
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * 一个任务的快照, 订阅时先发送当前值. 还没有添加的任务先发送未下载的状态.
+     */
+    public Observable<LoadInfo> observe(final String url) {
+        return Observable.defer(new Callable<ObservableSource<LoadInfo>>() {
+            @Override
+            public ObservableSource<LoadInfo> call() throws Exception {
+                final Watch watch = watch(url);
+                return watch.subject.doFinally(new Action() {
+                    @Override
+                    public void run() throws Exception {
+                        unwatch(url, watch);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 任务列表的快照, 订阅时先发送当前列表, 之后有变化时最多每秒发送一次.
+     *
+     * @param status 只包含这个状态的任务, -1 表示全部
+     */
+    public Observable<List<LoadInfo>> observeList(final int status) {
+        return observePage(-1, Integer.MAX_VALUE, status).toObservable();
+    }
+
+    /**
+     * 一页任务的快照, 订阅时先发送当前的一页. 只有这一页范围内的任务变化时才重新发送,
+     * 最多每秒一次; 一页不满时之后新加的任务也算在范围内.
+     *
+     * @param afterId 上一页最后一个任务的id, 第一页为-1
+     * @param limit   每页最多的任务数
+     * @param status  只包含这个状态的任务, -1 表示全部
+     */
+    public Flowable<List<LoadInfo>> observePage(final int afterId, final int limit, final int status) {
+        return Observable.defer(new Callable<ObservableSource<List<LoadInfo>>>() {
+            @Override
+            public ObservableSource<List<LoadInfo>> call() throws Exception {
+                //当前这一页最后一个任务的id, 不满一页时没有上限
+                final AtomicInteger lastId = new AtomicInteger(Integer.MAX_VALUE);
+                return changes.filter(new Predicate<Integer>() {
+                    @Override
+                    public boolean test(@NonNull Integer id) throws Exception {
+                        return id > afterId && id <= lastId.get();
+                    }
+                }).throttleLast(LIST_THROTTLE_MILLIS, TimeUnit.MILLISECONDS)
+                        .startWith(afterId)
+                        .map(new Function<Integer, List<LoadInfo>>() {
+                            @Override
+                            public List<LoadInfo> apply(@NonNull Integer changed) throws Exception {
+                                List<LoadInfo> infos = page(afterId, limit, status);
+                                lastId.set(infos.size() < limit ? Integer.MAX_VALUE
+                                        : infos.get(infos.size() - 1).getId());
+                                return infos;
+                            }
+                        });
+            }
+        }).toFlowable(BackpressureStrategy.LATEST);
+    }
+
+    /**
+     * 任务列表的变化. 订阅时先把当前所有任务作为插入发送, 之后有变化时最多每秒发送一次,
+     * 同一个任务的多次变化合并成一个; 没有变化时不发送.
+     *
+     * @param status 只包含这个状态的任务, -1 表示全部. 状态改变的任务作为插入或者删除.
+     */
+    public Observable<List<ListChange>> observeChanges(final int status) {
+        return Observable.defer(new Callable<ObservableSource<List<ListChange>>>() {
+            @Override
+            public ObservableSource<List<ListChange>> call() throws Exception {
+                final ChangeCollector collector = new ChangeCollector(status);
+                synchronized (TaskRegistry.this) {
+                    for (Entry each : byId.values()) {
+                        collector.add(each.id, null, each.info);
+                    }
+                    collectors.add(collector);
+                }
+                //先订阅变化通知再发送已经收集的当前任务, 两者之间的变化不会漏掉
+                return Observable.merge(changes.throttleLast(LIST_THROTTLE_MILLIS, TimeUnit.MILLISECONDS),
+                        Observable.just(-1))
+                        .map(new Function<Integer, List<ListChange>>() {
+                            @Override
+                            public List<ListChange> apply(@NonNull Integer changed) throws Exception {
+                                return collector.drain();
+                            }
+                        })
+                        .filter(new Predicate<List<ListChange>>() {
+                            @Override
+                            public boolean test(@NonNull List<ListChange> changes) throws Exception {
+                                return !changes.isEmpty();
+                            }
+                        })
+                        .doOnDispose(new Action() {
+                            @Override
+                            public void run() throws Exception {
+                                collectors.remove(collector);
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * 增加一个观察者, 没有时用当前的快照创建
+     */
+    private synchronized Watch watch(String url) {
+        Watch watch = watches.get(url);
+        if (watch == null) {
+            LoadInfo info = get(url);
+            if (info == null) {
+                info = new LoadInfo(DownLoadStatus.NORMAL);
+                info.setLoadurl(url);
+            }
+            watch = new Watch(BehaviorSubject.createDefault(info).<LoadInfo>toSerialized());
+            watches.put(url, watch);
+        }
+        watch.observers++;
+        return watch;
+    }
+
+    /**
+     * 最后一个观察者取消时移除, 下次观察时从任务表重新创建, 删除的任务不会一直留在内存中
+     */
+    private synchronized void unwatch(String url, Watch watch) {
+        if (--watch.observers == 0 && watches.get(url) == watch) {
+            watches.remove(url);
+        }
+    }
+
+    private void publish(String url, Entry entry) {
+        Entry old = tasks.put(url, entry);
+        byId.put(entry.id, entry);
+        for (ChangeCollector each : collectors) {
+            each.add(entry.id, old == null ? null : old.info, entry.info);
+        }
+        Watch watch = watches.get(url);
+        if (watch != null) {
+            watch.subject.onNext(entry.info);
+        }
+        changes.onNext(entry.id);
+    }
+
+    private static LoadInfo copy(LoadInfo from) {
+        LoadInfo info = new LoadInfo(from.getStatus(), from.getDownloadSize(), from.getTotalSize());
+        info.setId(from.getId());
+        info.setConnections(from.getConnections());
+        info.setLoadurl(from.getLoadurl());
+        info.setSaveName(from.getSaveName());
+        info.setSavePath(from.getSavePath());
+        return info;
+    }
+
+    /**
+     * 一个变化订阅者还没有发送的变化, 每个任务只保留第一次变化前和最后一次变化后的快照
+     */
+    private static class ChangeCollector {
+        private final int status;
+        private final LinkedHashMap<Integer, LoadInfo[]> pending = new LinkedHashMap<>();
+
+        ChangeCollector(int status) {
+            this.status = status;
+        }
+
+        /**
+         * @param from 变化前, 新加的任务为null
+         * @param to   变化后, 删除的任务为null
+         */
+        synchronized void add(int id, LoadInfo from, LoadInfo to) {
+            LoadInfo[] change = pending.get(id);
+            if (change == null) {
+                pending.put(id, new LoadInfo[]{from, to});
+            } else {
+                change[1] = to;
+            }
+        }
+
+        synchronized List<ListChange> drain() {
+            List<ListChange> changes = new ArrayList<>(pending.size());
+            for (Map.Entry<Integer, LoadInfo[]> each : pending.entrySet()) {
+                LoadInfo from = each.getValue()[0];
+                LoadInfo to = each.getValue()[1];
+                boolean was = from != null && (status == -1 || from.getStatus() == status);
+                boolean is = to != null && (status == -1 || to.getStatus() == status);
+                if (!was && is) {
+                    changes.add(new ListChange(ListChange.INSERTED, each.getKey(), ListChange.FIELD_ALL, to));
+                } else if (was && !is) {
+                    changes.add(new ListChange(ListChange.REMOVED, each.getKey(), 0, to == null ? from : to));
+                } else if (was) {
+                    int fields = ListChange.diff(from, to);
+                    if (fields != 0) {
+                        changes.add(new ListChange(ListChange.UPDATED, each.getKey(), fields, to));
+                    }
+                }
+            }
+            pending.clear();
+            return changes;
+        }
+    }
+
+    private static class Watch {
+        final Subject<LoadInfo> subject;
+        int observers; //由 TaskRegistry 加锁访问
+
+        Watch(Subject<LoadInfo> subject) {
+            this.subject = subject;
+        }
+    }
+
+    private static class Entry {
+        final int id;
+        final LoadInfo info;
+
+        Entry(int id, LoadInfo info) {
+            this.id = id;
+            this.info = info;
+        }
+    }
+}
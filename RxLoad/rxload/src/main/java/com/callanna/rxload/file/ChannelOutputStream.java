@@ -0,0 +1,35 @@
+package com.callanna.rxload.file;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 从指定位置开始按位置写入 FileChannel 的输出流.
+ * <p>
+ * 不改变 channel 自身的 position, 多个连接可以共用同一个 channel.
+ * okio 的 Buffer.writeTo 直接把它的分段数组交给这里写入, 中间不再复制到另外的数组.
+ */
+class ChannelOutputStream extends OutputStream {
+    private final FileChannel channel;
+    private long position;
+
+    ChannelOutputStream(FileChannel channel, long position) {
+        this.channel = channel;
+        this.position = position;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(b, off, len);
+        while (source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.callanna.rxload.file;
+
+/**
+ * 下载进度的保存策略.
+ * <p>
+ * 每写入 bytes 字节或者每隔 millis 毫秒把数据和进度同步到磁盘一次,
+ * 暂停和下载完成时总会同步一次.
+ */
+public class CheckpointPolicy {
+    public static final CheckpointPolicy DEFAULT = new CheckpointPolicy(4 * 1024 * 1024L, 1000L);
+
+    private final long bytes;
+    private final long millis;
+
+    /**
+     * @param bytes  写入多少字节后保存一次, 小于等于0表示不按字节保存
+     * @param millis 间隔多少毫秒保存一次, 小于等于0表示不按时间保存
+     */
+    public CheckpointPolicy(long bytes, long millis) {
+        this.bytes = bytes;
+        this.millis = millis;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    boolean due(long unsavedBytes, long elapsedMillis) {
+        return (bytes > 0 && unsavedBytes >= bytes) || (millis > 0 && elapsedMillis >= millis);
+    }
+}
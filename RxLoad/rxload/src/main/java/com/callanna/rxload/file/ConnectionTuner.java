@@ -0,0 +1,121 @@
+package com.callanna.rxload.file;
+
+import static com.callanna.rxload.Utils.log;
+
+/**
+ * 根据实际吞吐量调整一个任务的连接数.
+ * <p>
+ * 每个采样周期计算一次总速度: 增加一个连接后速度提高不到 {@link #GAIN} 就撤回,
+ * 减少一个连接后速度下降不到 {@link #GAIN} 就保持, 连接数始终在 [min, max] 之间.
+ * 稳定一段时间后交替向下, 向上试探一次, 适应网络的变化.
+ * <p>
+ * 从 max 个连接开始, 和不调整时一样, 然后按速度向下调整.
+ */
+public class ConnectionTuner {
+    private static final long WINDOW_MILLIS = 1000;
+    private static final double GAIN = 0.1;
+    private static final int PROBE_WINDOWS = 10;
+
+    private final int min;
+    private final int max;
+    private volatile int connections;
+
+    private volatile long windowStart;
+    private long windowBytes;
+    private double rateBefore;
+    private int lastChange;
+    private boolean settling;
+    private int stableWindows = PROBE_WINDOWS - 1; //第一个周期就开始向下试探
+    private boolean probeUp = false;
+
+    public ConnectionTuner(int min, int max) {
+        this.min = Math.max(1, Math.min(min, max));
+        this.max = Math.max(1, max);
+        this.connections = this.max;
+        this.windowStart = System.currentTimeMillis();
+    }
+
+    public int connections() {
+        return connections;
+    }
+
+    /**
+     * 恢复下载时进度不是从0开始, 记下起点
+     *
+     * @param downloaded 开始时已经下载的字节
+     */
+    public synchronized void start(long downloaded) {
+        windowBytes = downloaded;
+        windowStart = System.currentTimeMillis();
+    }
+
+    /**
+     * 写入数据后调用, 采样周期没到时直接返回, 不读取进度.
+     *
+     * @param progress 任务的下载进度
+     * @return 连接数是否增加了, 增加时要唤醒暂停的连接
+     */
+    public boolean sample(Progress progress) {
+        long now = System.currentTimeMillis();
+        if (now - windowStart < WINDOW_MILLIS || min == max) {
+            return false;
+        }
+        synchronized (this) {
+            long elapsed = now - windowStart;
+            if (elapsed < WINDOW_MILLIS) {
+                return false;
+            }
+            long written = progress.downloaded();
+            double rate = (written - windowBytes) * 1000.0 / elapsed;
+            windowBytes = written;
+            windowStart = now;
+            if (settling) {
+                //新连接建立需要时间, 跳过调整后的第一个周期
+                settling = false;
+                return false;
+            }
+            int before = connections;
+            adjust(rate);
+            return connections > before;
+        }
+    }
+
+    private void adjust(double rate) {
+        if (lastChange > 0) {
+            if (rate >= rateBefore * (1 + GAIN) && connections < max) {
+                change(1, rate);
+                return;
+            }
+            if (rate < rateBefore * (1 + GAIN)) {
+                change(-1, rate);
+            }
+            lastChange = 0;
+        } else if (lastChange < 0) {
+            if (rate < rateBefore * (1 - GAIN)) {
+                change(1, rate);
+            }
+            lastChange = 0;
+        } else if (++stableWindows >= PROBE_WINDOWS) {
+            stableWindows = 0;
+            if (probeUp && connections < max) {
+                change(1, rate);
+            } else if (!probeUp && connections > min) {
+                change(-1, rate);
+            }
+            probeUp = !probeUp;
+        }
+    }
+
+    private void change(int delta, double rate) {
+        int next = Math.max(min, Math.min(max, connections + delta));
+        if (next == connections) {
+            return;
+        }
+        log("ConnectionTuner: " + connections + " -> " + next + " at " + (long) rate + " B/s");
+        connections = next;
+        lastChange = delta;
+        rateBefore = rate;
+        settling = true;
+        stableWindows = 0;
+    }
+}
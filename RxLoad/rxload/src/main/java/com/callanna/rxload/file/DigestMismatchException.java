@@ -0,0 +1,14 @@
+package com.callanna.rxload.file;
+
+import java.io.IOException;
+
+/**
+ * 下载完成的文件与期望的摘要不一致.
+ */
+public class DigestMismatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public DigestMismatchException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,183 @@
+package com.callanna.rxload.file;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import okhttp3.Headers;
+import okio.ByteString;
+
+/**
+ * 下载文件的校验值.
+ * <p>
+ * 可以是整个文件的摘要, 也可以是按固定大小分块的摘要清单, 或者两者都有.
+ * 摘要在写入文件的同时计算, 最后一个字节写完时校验结果就已经确定.
+ */
+public class DigestSpec {
+    public static final String MD5 = "MD5";
+    public static final String SHA1 = "SHA-1";
+    public static final String SHA256 = "SHA-256";
+
+    private final String algorithm;
+    private final ByteString expected;
+    private final long blockSize;
+    private final List<ByteString> blocks;
+
+    private DigestSpec(String algorithm, ByteString expected, long blockSize, List<ByteString> blocks) {
+        this.algorithm = algorithm;
+        this.expected = expected;
+        this.blockSize = blockSize;
+        this.blocks = blocks;
+        newDigest(); //不支持的算法尽早报错
+    }
+
+    /**
+     * 整个文件的摘要
+     *
+     * @param algorithm {@link #MD5}, {@link #SHA1} 或 {@link #SHA256}
+     * @param hex       十六进制摘要
+     */
+    public static DigestSpec of(String algorithm, String hex) {
+        return new DigestSpec(algorithm, decodeHex(hex), 0, null);
+    }
+
+    /**
+     * 分块摘要清单, 第 i 个摘要对应 [i * blockSize, (i + 1) * blockSize) 的数据.
+     *
+     * @param algorithm {@link #MD5}, {@link #SHA1} 或 {@link #SHA256}
+     * @param blockSize 块大小
+     * @param hexBlocks 每一块的十六进制摘要
+     */
+    public static DigestSpec blocks(String algorithm, long blockSize, List<String> hexBlocks) {
+        return blocks(algorithm, null, blockSize, hexBlocks);
+    }
+
+    /**
+     * 整个文件的摘要加上分块摘要清单
+     */
+    public static DigestSpec blocks(String algorithm, String hex, long blockSize, List<String> hexBlocks) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize <= 0");
+        }
+        List<ByteString> blocks = new ArrayList<>(hexBlocks.size());
+        for (String each : hexBlocks) {
+            blocks.add(decodeHex(each));
+        }
+        return new DigestSpec(algorithm, hex == null ? null : decodeHex(hex), blockSize,
+                Collections.unmodifiableList(blocks));
+    }
+
+    /**
+     * 从响应头读取摘要, 优先 Digest(RFC 3230) 中的 SHA-256, 其次 SHA, MD5, 最后是 Content-MD5.
+     * 只用于完整文件或 bytes=0- 的响应.
+     *
+     * @return 没有摘要时返回null
+     */
+    public static DigestSpec fromHeaders(Headers headers) {
+        String digest = headers.get("Digest");
+        if (digest != null) {
+            ByteString sha256 = null, sha1 = null, md5 = null;
+            for (String each : digest.split(",")) {
+                int split = each.indexOf('=');
+                if (split <= 0) {
+                    continue;
+                }
+                String name = each.substring(0, split).trim();
+                ByteString value = ByteString.decodeBase64(each.substring(split + 1).trim());
+                if (value == null) {
+                    continue;
+                }
+                if ("SHA-256".equalsIgnoreCase(name)) {
+                    sha256 = value;
+                } else if ("SHA".equalsIgnoreCase(name)) {
+                    sha1 = value;
+                } else if ("MD5".equalsIgnoreCase(name)) {
+                    md5 = value;
+                }
+            }
+            if (sha256 != null) {
+                return new DigestSpec(SHA256, sha256, 0, null);
+            } else if (sha1 != null) {
+                return new DigestSpec(SHA1, sha1, 0, null);
+            } else if (md5 != null) {
+                return new DigestSpec(MD5, md5, 0, null);
+            }
+        }
+        String contentMd5 = headers.get("Content-MD5");
+        if (contentMd5 != null) {
+            ByteString md5 = ByteString.decodeBase64(contentMd5.trim());
+            if (md5 != null) {
+                return new DigestSpec(MD5, md5, 0, null);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 整个文件的摘要编码成 "算法:十六进制" 保存到数据库, 分块清单不保存.
+     *
+     * @return 没有整个文件的摘要时返回空字符串
+     */
+    public String encode() {
+        return expected == null ? "" : algorithm + ":" + expected.hex();
+    }
+
+    /**
+     * @return 空字符串或者格式不对时返回null
+     */
+    public static DigestSpec decode(String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        int split = encoded.lastIndexOf(':');
+        if (split <= 0) {
+            return null;
+        }
+        try {
+            return of(encoded.substring(0, split), encoded.substring(split + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public long getBlockSize() {
+        return blockSize;
+    }
+
+    boolean hasFileDigest() {
+        return expected != null;
+    }
+
+    boolean hasBlocks() {
+        return blocks != null;
+    }
+
+    boolean matches(byte[] digest) {
+        return expected.equals(ByteString.of(digest));
+    }
+
+    /**
+     * 第 index 块的摘要是否正确, 清单之外的块不校验.
+     */
+    boolean blockMatches(long index, byte[] digest) {
+        return index >= blocks.size() || blocks.get((int) index).equals(ByteString.of(digest));
+    }
+
+    MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("unsupported digest: " + algorithm, e);
+        }
+    }
+
+    private static ByteString decodeHex(String hex) {
+        return ByteString.decodeHex(hex.trim().toLowerCase());
+    }
+}
@@ -1,7 +1,6 @@
 package com.callanna.rxload.file;
 
 import com.callanna.rxload.db.DownLoadStatus;
-import com.callanna.rxload.db.DownloadRange;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -9,14 +8,22 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.text.ParseException;
 
+import io.reactivex.CompletableEmitter;
 import io.reactivex.FlowableEmitter;
 import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
 
 import static com.callanna.rxload.Utils.GMTToLong;
+import static com.callanna.rxload.Utils.empty;
 import static com.callanna.rxload.Utils.log;
 import static com.callanna.rxload.Utils.longToGMT;
 import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
@@ -30,68 +37,132 @@ import static okhttp3.internal.Util.closeQuietly;
  * File Helper
  */
 public class FileHelper {
-    private static final int EACH_RECORD_SIZE = 16; //long + long = 8 + 8
+    public static final int WRITE_BUFFERED = 0;  //经过缓冲数组写入
+    public static final int WRITE_DIRECT = 1;    //直接把 okio 的分段写入文件
+    static final int EACH_RECORD_SIZE = 16; //long + long = 8 + 8
     private static final String ACCESS = "rws";
-    private int RECORD_FILE_TOTAL_SIZE;
+    private static final String SEGMENT_ACCESS = "rw"; //由 CheckpointPolicy 决定何时同步
+    private static final long SEGMENT_SIZE = 1024 * 1024L;
+    private static final int MAX_SEGMENTS = 4096;
+    private static final int SPARE_SLOTS = 16;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final long DIRECT_READ_SIZE = 64 * 1024L;
+    private static final String UNEXPECTED_END = "unexpected end of segment ";
+    private static final String UNEXPECTED_BODY_END = "unexpected end of body ";
+    private static final long PROGRESS_INTERVAL = 200; //普通下载发送进度的间隔(毫秒)
     //|*********************|
     //|*****Record  File****|
     //|*********************|
-    //|  0L      |     7L   | 0
-    //|  8L      |     15L  | 1
-    //|  16L     |     31L  | 2
-    //|  ...     |     ...  | maxThreads-1
+    //|  length  |  slots   | header
+    //|  start   |  end     | 0
+    //|  start   |  end     | 1
+    //|  ...     |  ...     | ...
+    //|  start   |  end     | slots-1
     //|*********************|
-    private int maxThreads;
+    //start > end 的槽位已下载完成, 可以被切分出来的新单元复用
 
-    public FileHelper(int maxThreads) {
+    private final BufferPool bufferPool = new BufferPool(WRITE_BUFFER_SIZE, 8);
+    private CheckpointPolicy checkpointPolicy = CheckpointPolicy.DEFAULT;
+    private int minThreads = 1;
+    private int maxThreads = 3;
+
+    public FileHelper() {
+    }
+
+    public void setCheckpointPolicy(CheckpointPolicy checkpointPolicy) {
+        this.checkpointPolicy = checkpointPolicy;
+    }
+
+    public void setThreads(int minThreads, int maxThreads) {
+        this.minThreads = minThreads;
         this.maxThreads = maxThreads;
-        RECORD_FILE_TOTAL_SIZE = EACH_RECORD_SIZE * maxThreads;
     }
 
-    public void prepareDownload(File lastModifyFile, File saveFile, long fileLength )
+    public void prepareDownload(File lastModifyFile, File saveFile, long fileLength,
+                                String lastModify)
             throws IOException, ParseException {
-        writeLastModify(lastModifyFile);
+        writeLastModify(lastModifyFile, lastModify);
         prepareFile(saveFile, fileLength);
     }
 
+    /**
+     * @param digestSpec 期望的摘要, 不校验时为null
+     */
     public void saveFile(FlowableEmitter<DownLoadStatus> emitter, File saveFile,
-                         ResponseBody  resp) {
+                         ResponseBody  resp, int writeMode, RateLimiter limiter,
+                         DigestSpec digestSpec) {
         log("saveFile: " +saveFile.getPath());
-        InputStream inputStream = null;
+        BufferedSource source = null;
         OutputStream outputStream = null;
         try {
             try {
-                int readLen;
-                int downloadSize = 0;
-                byte[] buffer = new byte[8192];
-
-                DownLoadStatus status = new DownLoadStatus();
-                status.setStatus(DownLoadStatus.STARTED);
-                inputStream = resp.byteStream();
+                long readLen;
+                long downloadSize = 0;
+                boolean direct = writeMode == WRITE_DIRECT;
+                byte[] buffer = direct ? null : new byte[8192];
+                Buffer sink = direct ? new Buffer() : null;
+
+                source = resp.source();
+                InputStream inputStream = source.inputStream();
                 outputStream = new FileOutputStream(saveFile);
 
                 long contentLength = resp.contentLength();
-
-                status.setTotalSize(contentLength);
-                long  oldStart= 0;
-                while ((readLen = inputStream.read(buffer)) != -1 && !emitter.isCancelled()) {
-                    outputStream.write(buffer, 0, readLen);
-                    downloadSize += readLen;
-                    status.setDownloadSize(downloadSize);
-                    if(status.getDownloadSize() == contentLength){
-                        status.setStatus(DownLoadStatus.COMPLETED);
+                //顺序写入, 摘要全部用内存中的数据计算
+                FileVerifier verifier = digestSpec != null && digestSpec.hasFileDigest()
+                        ? new FileVerifier(digestSpec, null, contentLength) : null;
+                SegmentHasher hasher = digestSpec == null ? null
+                        : new SegmentHasher(digestSpec, verifier, null, 0, contentLength);
+
+                long lastEmit = System.currentTimeMillis();
+                while ((readLen = direct ? source.read(sink, limiter.chunk(DIRECT_READ_SIZE))
+                        : inputStream.read(buffer, 0, (int) limiter.chunk(buffer.length))) != -1
+                        && !emitter.isCancelled()) {
+                    limiter.acquire(readLen);
+                    if (direct) {
+                        ByteString data = hasher == null ? null : sink.snapshot();
+                        sink.writeTo(outputStream);
+                        if (hasher != null) {
+                            data.write(hasher);
+                        }
+                    } else {
+                        outputStream.write(buffer, 0, (int) readLen);
+                        if (hasher != null) {
+                            hasher.write(buffer, 0, (int) readLen);
+                        }
+                    }
+                    if (hasher != null && hasher.badBlock() != -1) {
+                        throw new DigestMismatchException("block digest mismatch at " + hasher.badBlock());
                     }
-                    if(downloadSize - oldStart > 100000L){
+                    downloadSize += readLen;
+                    //按时间间隔发送进度快照, 每次都是新的对象
+                    long now = System.currentTimeMillis();
+                    if (now - lastEmit >= PROGRESS_INTERVAL) {
                         log("Thread: " + Thread.currentThread().getName() + "; saveLenRead: " + downloadSize);
-                        oldStart = downloadSize;
-                        emitter.onNext(status);
+                        lastEmit = now;
+                        emitter.onNext(new DownLoadStatus(DownLoadStatus.STARTED, downloadSize, contentLength));
                     }
                 }
                 outputStream.flush();// This is important!!!
-                emitter.onNext(status);
+                //响应在 Content-Length 之前结束时不算完成, 由重试或者失败处理
+                if (contentLength >= 0 && downloadSize < contentLength && !emitter.isCancelled()) {
+                    throw new IOException(UNEXPECTED_BODY_END + downloadSize + "/" + contentLength);
+                }
+                if (hasher != null && !emitter.isCancelled()) {
+                    hasher.finish();
+                    if (hasher.badBlock() != -1) {
+                        throw new DigestMismatchException("block digest mismatch at " + hasher.badBlock());
+                    }
+                    if (verifier != null) {
+                        verifier.verify();
+                    }
+                }
+                //长度未知时读到结束就是完成
+                long totalSize = contentLength < 0 ? downloadSize : contentLength;
+                emitter.onNext(new DownLoadStatus(downloadSize == totalSize
+                        ? DownLoadStatus.COMPLETED : DownLoadStatus.STARTED, downloadSize, totalSize));
                 emitter.onComplete();
             } finally {
-                closeQuietly(inputStream);
+                closeQuietly(source);
                 closeQuietly(outputStream);
                 closeQuietly(resp);
             }
@@ -100,81 +171,118 @@ public class FileHelper {
         }
     }
 
+    /**
+     * @param align 单元大小对齐到它的整数倍(分块摘要的块大小), 不需要时为0
+     */
     public void prepareDownload(File lastModifyFile, File tempFile, File saveFile,
-                                long fileLength )
+                                long fileLength, String lastModify, long align)
             throws IOException, ParseException {
 
-        writeLastModify(lastModifyFile );
-        prepareFile(tempFile, saveFile, fileLength);
+        writeLastModify(lastModifyFile, lastModify);
+        if (!tempFile.exists() || !saveFile.exists() || tempFileDamaged(tempFile, fileLength)) {
+            long eachSize = Math.max(SEGMENT_SIZE, (fileLength + MAX_SEGMENTS - 1) / MAX_SEGMENTS);
+            if (align > 1) {
+                eachSize = (eachSize + align - 1) / align * align;
+            }
+            prepareFile(tempFile, saveFile, fileLength, eachSize);
+        }
     }
 
-    public void saveFile(FlowableEmitter<DownLoadStatus> emitter, int i, File tempFile,
-                         File saveFile, ResponseBody response) {
-        log( "saveFile: temp "+i+","+saveFile.getPath());
+    /**
+     * 准备由探测请求开始的分段下载, 整个文件作为一个单元, 其它连接通过切分分担.
+     */
+    public void prepareProbeDownload(File lastModifyFile, File tempFile, File saveFile,
+                                     long fileLength, String lastModify)
+            throws IOException, ParseException {
 
-        RandomAccessFile record = null;
-        FileChannel recordChannel = null;
-        RandomAccessFile save = null;
-        FileChannel saveChannel = null;
-        InputStream inStream = null;
+        writeLastModify(lastModifyFile, lastModify);
+        prepareFile(tempFile, saveFile, fileLength, Math.max(1, fileLength));
+    }
+
+    /**
+     * 保存一个单元的数据, 不发送进度, 进度由 {@link SegmentScheduler#downloaded()} 读取.
+     * 响应在单元结束之前断开时报 IOException, 由重试从写到的位置继续, 计入重试次数.
+     */
+    public void saveFile(CompletableEmitter emitter, SegmentScheduler scheduler,
+                         Segment segment, ResponseBody response, int writeMode,
+                         RateLimiter limiter) {
+        log("saveFile: " + segment);
+
+        BufferedSource source = null;
+        boolean direct = writeMode == WRITE_DIRECT;
+        ByteBuffer buffer = direct ? null : bufferPool.acquire();
         try {
             try {
-                int readLen;
-                byte[] buffer = new byte[2048];
-                DownLoadStatus status = new DownLoadStatus();
-                status.setStatus(DownLoadStatus.STARTED);
-                //随机访问文件，可以指定断点续传的起始位置
-                record = new RandomAccessFile(tempFile, ACCESS);
-                //Chanel NIO中的用法，由于RandomAccessFile没有使用缓存策略，
-                // 直接使用会使得下载速度变慢，亲测缓存下载3.3秒的文件，
-                // 用普通的RandomAccessFile需要20多秒。
-
-                recordChannel = record.getChannel();
-                // 内存映射，直接使用RandomAccessFile，
-                // 是用其seek方法指定下载的起始位置，
-                // 使用缓存下载，在这里指定下载位置。
-                MappedByteBuffer recordBuffer = recordChannel
-                        .map(READ_WRITE, 0, RECORD_FILE_TOTAL_SIZE);
-
-                int startIndex = i * EACH_RECORD_SIZE;
-
-                long start = recordBuffer.getLong(startIndex);
-                log("savefile=====>"+start);
+                long readLen;
+                long start = segment.position();
                 long oldStart = start;
-//                long end = recordBuffer.getLong(startIndex + 8);
-
-                long totalSize = recordBuffer.getLong(RECORD_FILE_TOTAL_SIZE - 8) + 1;
-                status.setTotalSize(totalSize);
-
-                save = new RandomAccessFile(saveFile, ACCESS);
-                saveChannel = save.getChannel();
 
-                inStream = response.byteStream();
-
-                while ((readLen = inStream.read(buffer)) != -1 && !emitter.isCancelled()) {
-                    start += readLen;
-                    MappedByteBuffer saveBuffer = saveChannel.map(READ_WRITE, start, readLen);
-                    saveBuffer.put(buffer, 0, readLen);
-                    recordBuffer.putLong(startIndex, start);
-                    status.setDownloadSize(totalSize - getResidue(recordBuffer));
-                    if(status.getDownloadSize() == totalSize){
-                        status.setStatus(DownLoadStatus.COMPLETED);
+                FileChannel saveChannel = scheduler.channel();
+                source = response.source();
+                ReadableByteChannel channel = direct ? null : Channels.newChannel(source.inputStream());
+                Buffer sink = direct ? new Buffer() : null;
+                OutputStream out = direct ? new ChannelOutputStream(saveChannel, start) : null;
+                SegmentHasher hasher = scheduler.hasher(segment);
+
+                while (!emitter.isDisposed()) {
+                    //单元可能已被切分, 只读到新的结束位置
+                    long remaining = segment.end() - start + 1;
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    if (hasher != null) {
+                        hasher.limit(segment.end() + 1);
+                    }
+                    long wanted = limiter.chunk(remaining);
+                    if (direct) {
+                        //okio 的分段直接写入文件, 不经过中间数组
+                        readLen = source.read(sink, Math.min(wanted, DIRECT_READ_SIZE));
+                        if (readLen == -1) {
+                            throw new IOException(UNEXPECTED_END + segment);
+                        }
+                        limiter.acquire(readLen);
+                        //快照共享 okio 的分段, 写入文件之后再计算摘要
+                        ByteString data = hasher == null ? null : sink.snapshot();
+                        sink.writeTo(out);
+                        if (hasher != null) {
+                            data.write(hasher);
+                        }
+                        start += readLen;
+                    } else {
+                        buffer.clear();
+                        if (wanted < buffer.capacity()) {
+                            buffer.limit((int) wanted);
+                        }
+                        readLen = fill(channel, buffer);
+                        if (readLen <= 0) {
+                            throw new IOException(UNEXPECTED_END + segment);
+                        }
+                        limiter.acquire(readLen);
+                        //直接按位置写入, 不再为每次读取创建内存映射
+                        buffer.flip();
+                        ByteBuffer written = hasher == null ? null : buffer.duplicate();
+                        while (buffer.hasRemaining()) {
+                            start += saveChannel.write(buffer, start);
+                        }
+                        if (hasher != null) {
+                            hasher.update(written);
+                        }
+                    }
+                    scheduler.advance(segment, readLen);
+                    if (hasher != null && hasher.badBlock() != -1) {
+                        //退回到出错的块重新请求
+                        scheduler.reject(segment, hasher.badBlock());
+                        throw new IOException("block digest mismatch at " + hasher.badBlock());
                     }
-                    if(start - oldStart > 100000L){
+                    if (start - oldStart > 1024 * 1024L) {
                         log("Thread: " + Thread.currentThread().getName() + "; saveLenRead: " + start);
                         oldStart = start;
-                        emitter.onNext(status);
                     }
                 }
-                emitter.onNext(status);
                 emitter.onComplete();
-
             } finally {
-                closeQuietly(record);
-                closeQuietly(recordChannel);
-                closeQuietly(save);
-                closeQuietly(saveChannel);
-                closeQuietly(inStream);
+                bufferPool.release(buffer);
+                closeQuietly(source);
                 closeQuietly(response);
             }
         } catch (IOException e) {
@@ -189,13 +297,14 @@ public class FileHelper {
         try {
             record = new RandomAccessFile(tempFile, ACCESS);
             channel = record.getChannel();
-            MappedByteBuffer buffer = channel.map(READ_WRITE, 0, RECORD_FILE_TOTAL_SIZE);
+            MappedByteBuffer buffer = channel.map(READ_WRITE, 0, record.length());
 
+            long slots = buffer.getLong(8);
             long startByte;
             long endByte;
-            for (int i = 0; i < maxThreads; i++) {
-                startByte = buffer.getLong();
-                endByte = buffer.getLong();
+            for (int i = 1; i <= slots; i++) {
+                startByte = buffer.getLong(i * EACH_RECORD_SIZE);
+                endByte = buffer.getLong(i * EACH_RECORD_SIZE + 8);
                 if (startByte <= endByte) {
                     return true;
                 }
@@ -210,35 +319,43 @@ public class FileHelper {
     public boolean tempFileDamaged(File tempFile, long fileLength) throws IOException {
 
         RandomAccessFile record = null;
-        FileChannel channel = null;
         try {
             record = new RandomAccessFile(tempFile, ACCESS);
-            channel = record.getChannel();
-            MappedByteBuffer buffer = channel.map(READ_WRITE, 0, RECORD_FILE_TOTAL_SIZE);
-            long recordTotalSize = buffer.getLong(RECORD_FILE_TOTAL_SIZE - 8) + 1;
-            return recordTotalSize != fileLength;
+            if (record.length() < EACH_RECORD_SIZE) {
+                return true;
+            }
+            long recordTotalSize = record.readLong();
+            long slots = record.readLong();
+            return recordTotalSize != fileLength
+                    || record.length() != (slots + 1) * EACH_RECORD_SIZE;
         } finally {
-            closeQuietly(channel);
             closeQuietly(record);
         }
     }
 
-    public DownloadRange readDownloadRange(File tempFile, int i) throws IOException {
-
+    /**
+     * 打开分段调度器, 读取记录文件中每个单元的进度.
+     *
+     * @param tempFile 记录文件
+     * @param saveFile 下载文件
+     * @param digestSpec 期望的摘要, 不校验时为null
+     * @return SegmentScheduler
+     * @throws IOException
+     */
+    public SegmentScheduler openScheduler(File tempFile, File saveFile, DigestSpec digestSpec)
+            throws IOException {
         RandomAccessFile record = null;
-        FileChannel channel = null;
+        RandomAccessFile save = null;
         try {
-            record = new RandomAccessFile(tempFile, ACCESS);
-            channel = record.getChannel();
-            MappedByteBuffer buffer = channel
-                    .map(READ_WRITE, i * EACH_RECORD_SIZE, (i + 1) * EACH_RECORD_SIZE);
-            long startByte = buffer.getLong();
-            long endByte = buffer.getLong();
-            log("readDownloadRange: "+i +",start:"+startByte+",end:"+endByte);
-            return new DownloadRange(startByte, endByte);
-        } finally {
-            closeQuietly(channel);
+            record = new RandomAccessFile(tempFile, SEGMENT_ACCESS);
+            MappedByteBuffer buffer = record.getChannel().map(READ_WRITE, 0, record.length());
+            save = new RandomAccessFile(saveFile, SEGMENT_ACCESS);
+            return new SegmentScheduler(record, buffer, save, checkpointPolicy,
+                    new ConnectionTuner(minThreads, maxThreads), digestSpec);
+        } catch (IOException e) {
             closeQuietly(record);
+            closeQuietly(save);
+            throw e;
         }
     }
 
@@ -254,7 +371,7 @@ public class FileHelper {
         }
     }
 
-    private void prepareFile(File tempFile, File saveFile, long fileLength)
+    private void prepareFile(File tempFile, File saveFile, long fileLength, long eachSize)
             throws IOException {
 
         RandomAccessFile rFile = null;
@@ -264,27 +381,32 @@ public class FileHelper {
             rFile = new RandomAccessFile(saveFile, ACCESS);
             rFile.setLength(fileLength);//设置下载文件的长度
 
+            int segments = (int) Math.max(1, (fileLength + eachSize - 1) / eachSize);
+            int slots = segments + SPARE_SLOTS;
+            int recordSize = (slots + 1) * EACH_RECORD_SIZE;
+
             rRecord = new RandomAccessFile(tempFile, ACCESS);
-            rRecord.setLength(RECORD_FILE_TOTAL_SIZE); //设置指针记录文件的大小
+            rRecord.setLength(recordSize); //设置指针记录文件的大小
 
             channel = rRecord.getChannel();
-            MappedByteBuffer buffer = channel.map(READ_WRITE, 0, RECORD_FILE_TOTAL_SIZE);
+            MappedByteBuffer buffer = channel.map(READ_WRITE, 0, recordSize);
 
+            buffer.putLong(fileLength);
+            buffer.putLong(slots);
             long start;
             long end;
-            int eachSize = (int) (fileLength / maxThreads);
-
-            for (int i = 0; i < maxThreads; i++) {
-                if (i == maxThreads - 1) {
+            for (int i = 0; i < slots; i++) {
+                if (i < segments) {
                     start = i * eachSize;
-                    end = fileLength - 1;
+                    end = Math.min(start + eachSize, fileLength) - 1;
                 } else {
-                    start = i * eachSize;
-                    end = (i + 1) * eachSize - 1;
+                    start = 0;
+                    end = -1;
                 }
                 buffer.putLong(start);
                 buffer.putLong(end);
             }
+            buffer.force();
         } finally {
             closeQuietly(channel);
             closeQuietly(rRecord);
@@ -307,33 +429,36 @@ public class FileHelper {
         }
     }
 
-    private void writeLastModify(File file )
+    /**
+     * 读满缓冲或者读到结束
+     *
+     * @return 读取的字节, 已经结束返回-1
+     */
+    private int fill(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = source.read(buffer);
+            if (read == -1) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * 保存服务器返回的 Last-Modified, 没有时保存0.
+     */
+    private void writeLastModify(File file, String lastModify)
             throws IOException, ParseException {
         RandomAccessFile record = null;
         try {
             record = new RandomAccessFile(file, ACCESS);
             record.setLength(8);
             record.seek(0);
-            record.writeLong(GMTToLong(""));
+            record.writeLong(empty(lastModify) ? 0 : GMTToLong(lastModify));
         } finally {
             closeQuietly(record);
         }
     }
-
-    /**
-     * 还剩多少字节没有下载
-     *
-     * @param recordBuffer buffer
-     * @return 剩余的字节
-     */
-    private long getResidue(MappedByteBuffer recordBuffer) {
-        long residue = 0;
-        for (int j = 0; j < maxThreads; j++) {
-            long startTemp = recordBuffer.getLong(j * EACH_RECORD_SIZE);
-            long endTemp = recordBuffer.getLong(j * EACH_RECORD_SIZE + 8);
-            long temp = endTemp - startTemp + 1;
-            residue += temp;
-        }
-        return residue;
-    }
 }
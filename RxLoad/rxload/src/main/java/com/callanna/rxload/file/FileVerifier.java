@@ -0,0 +1,235 @@
+package com.callanna.rxload.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+import okio.ByteString;
+
+import static com.callanna.rxload.Utils.log;
+
+/**
+ * 整个文件的摘要, 由所有连接共用.
+ * <p>
+ * MD5/SHA 只能从头按顺序计算, 各个连接算出的部分没法合并, 所以摘要沿着从文件开头
+ * 连续写完的部分(前沿)前进: 正好写在前沿上的数据直接用内存中的数据计算;
+ * 写在前沿后面的只记下范围, 等前沿赶上来时再从文件读回, 这时数据通常还在页缓存中.
+ * 单连接下载时所有数据都写在前沿上, 不需要读回.
+ * <p>
+ * 锁只保护范围记录. 同一时间只有一个连接计算摘要(包括读回), 在锁外进行;
+ * 其它连接这时只记下写入的范围就返回, 由正在计算的连接接着读回, 不会互相等待.
+ */
+class FileVerifier {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final DigestSpec spec;
+    private final FileChannel channel;
+    private final long totalSize;
+    private final TreeMap<Long, Long> ahead = new TreeMap<>(); //已写完的范围 start -> end(不含)
+    private final MessageDigest digest;
+    private ByteBuffer readBuffer;    //只由计算摘要的连接使用
+    private long frontier;            //已经计算或者正在计算的位置
+    private boolean hashing;          //有连接正在锁外计算摘要
+    private boolean dirty;
+
+    /**
+     * @param channel   下载文件, 用于读回先写入的数据, 顺序写入时可以为null
+     * @param totalSize 文件长度, 未知时为-1
+     */
+    FileVerifier(DigestSpec spec, FileChannel channel, long totalSize) {
+        this.spec = spec;
+        this.channel = channel;
+        this.totalSize = totalSize;
+        this.digest = spec.newDigest();
+    }
+
+    /**
+     * 记录已经下载完成的范围, 恢复下载时使用.
+     *
+     * @param end 结束位置(不含)
+     */
+    void done(long start, long end) throws IOException {
+        if (start >= end) {
+            return;
+        }
+        synchronized (this) {
+            add(start, end);
+            if (hashing) {
+                return;
+            }
+            hashing = true;
+        }
+        drain(false);
+    }
+
+    /**
+     * 数据已经写入文件.
+     *
+     * @param position 写入的位置
+     * @param data     写入的数据, 不会改变它的 position
+     */
+    void written(long position, ByteBuffer data) throws IOException {
+        long end = position + data.remaining();
+        ByteBuffer part;
+        synchronized (this) {
+            if (end <= frontier) {
+                return;
+            }
+            if (hashing || position > frontier) {
+                //前沿后面的, 或者别的连接正在计算, 之后从文件读回
+                add(position, end);
+                return;
+            }
+            part = data.duplicate();
+            part.position(part.position() + (int) (frontier - position));
+            frontier = end;
+            hashing = true;
+        }
+        try {
+            digest.update(part);
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+        drain(false);
+    }
+
+    /**
+     * 已经计算过的数据被重写, 校验时从头读回整个文件.
+     */
+    synchronized void invalidate() {
+        dirty = true;
+    }
+
+    /**
+     * 所有数据写完后校验.
+     *
+     * @throws DigestMismatchException 摘要不一致
+     */
+    void verify() throws IOException {
+        synchronized (this) {
+            while (hashing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while verifying");
+                }
+            }
+            if (dirty) {
+                log("digest invalidated, read back whole file");
+                digest.reset();
+                ahead.clear();
+                frontier = 0;
+                dirty = false;
+            }
+            hashing = true;
+        }
+        try {
+            drain(true);
+            if (channel != null && frontier < totalSize) {
+                readBack(frontier, totalSize);
+                frontier = totalSize;
+            }
+            byte[] result = digest.digest();
+            if (!spec.matches(result)) {
+                throw new DigestMismatchException(spec.getAlgorithm() + " mismatch: "
+                        + ByteString.of(result).hex() + ", expected " + spec.encode());
+            }
+            log("digest verified: " + spec.encode());
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * 合并到已写完的范围中
+     */
+    private void add(long start, long end) {
+        Map.Entry<Long, Long> floor = ahead.floorEntry(start);
+        if (floor != null && floor.getValue() >= start) {
+            start = floor.getKey();
+            end = Math.max(end, floor.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = ahead.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ahead.remove(next.getKey());
+        }
+        ahead.put(start, end);
+    }
+
+    /**
+     * 计算摘要的连接把前沿赶上的范围从文件读回, 直到没有连续的范围. 读回在锁外进行,
+     * 期间其它连接写完的范围也由这里接着读回. 检查没有范围和放弃计算在同一个锁内, 不会漏掉.
+     *
+     * @param keep 结束后继续保持计算, 校验时使用
+     */
+    private void drain(boolean keep) throws IOException {
+        boolean finished = false;
+        try {
+            while (true) {
+                long start;
+                long end;
+                synchronized (this) {
+                    Map.Entry<Long, Long> first = ahead.firstEntry();
+                    if (first == null || first.getKey() > frontier) {
+                        if (!keep) {
+                            hashing = false;
+                            notifyAll();
+                        }
+                        finished = true;
+                        return;
+                    }
+                    ahead.remove(first.getKey());
+                    if (first.getValue() <= frontier) {
+                        continue;
+                    }
+                    start = frontier;
+                    end = first.getValue();
+                    frontier = end;
+                }
+                readBack(start, end);
+            }
+        } finally {
+            if (!finished && !keep) {
+                release();
+            }
+        }
+    }
+
+    private synchronized void release() {
+        hashing = false;
+        notifyAll();
+    }
+
+    private void readBack(long start, long end) throws IOException {
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+        readBack(channel, digest, readBuffer, start, end);
+    }
+
+    /**
+     * 从文件读取 [start, end) 计算摘要
+     */
+    static void readBack(FileChannel channel, MessageDigest digest, ByteBuffer buffer,
+                         long start, long end) throws IOException {
+        while (start < end) {
+            buffer.clear();
+            if (end - start < buffer.capacity()) {
+                buffer.limit((int) (end - start));
+            }
+            int read = channel.read(buffer, start);
+            if (read <= 0) {
+                throw new IOException("unexpected end of file at " + start);
+            }
+            buffer.flip();
+            digest.update(buffer);
+            start += read;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.callanna.rxload.file;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个任务的下载进度.
+ * <p>
+ * 每个单元的位置就是它自己的计数器, 只由下载它的连接写入; 读取进度时才把所有单元加起来,
+ * 写入路径上没有共享的计数器. 已经完成并保存过的单元合并到 folded 中, 不再参与求和.
+ */
+public class Progress {
+    private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>();
+    private final AtomicLong folded = new AtomicLong();
+
+    /**
+     * @param downloaded 开始时已经下载完成的字节
+     */
+    Progress(long downloaded) {
+        folded.set(downloaded);
+    }
+
+    /**
+     * 开始统计一个单元, 只统计它在这之后写入的字节
+     */
+    void track(Segment segment) {
+        segments.add(segment);
+    }
+
+    /**
+     * 单元已经完成, 进度不会再变化
+     */
+    void fold(Segment segment) {
+        if (segments.remove(segment)) {
+            folded.addAndGet(segment.done());
+        }
+    }
+
+    /**
+     * 已经下载的字节, 多个连接同时写入时是一个近似的快照
+     */
+    public long downloaded() {
+        long downloaded = folded.get();
+        for (Segment each : segments) {
+            downloaded += each.done();
+        }
+        return downloaded;
+    }
+}
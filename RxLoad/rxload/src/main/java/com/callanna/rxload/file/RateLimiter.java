@@ -0,0 +1,83 @@
+package com.callanna.rxload.file;
+
+import java.io.InterruptedIOException;
+
+/**
+ * 令牌桶限速器.
+ * <p>
+ * 每秒产生 bytesPerSecond 个令牌, 最多积攒一秒; 写入前先取令牌, 不够时睡眠等待.
+ * 限速器可以串起来使用: 任务 -> 主机 -> 全局, 每一级都要取到令牌.
+ * 速度可以在下载过程中随时修改, 不限速时每次只多读一个 volatile 变量.
+ */
+public class RateLimiter {
+    private static final long MIN_CHUNK = 4 * 1024L;
+
+    private final RateLimiter parent;
+    private volatile long bytesPerSecond;
+    private long available;
+    private long lastRefill = System.nanoTime();
+
+    public RateLimiter(RateLimiter parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * 修改速度
+     *
+     * @param bytesPerSecond 每秒字节数, 小于等于0表示不限速
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.available = Math.min(available, bytesPerSecond);
+    }
+
+    public long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * 限速时每次读取的最大字节, 避免一次取太多令牌造成长时间停顿.
+     *
+     * @param wanted 想要读取的字节
+     * @return 可以读取的字节
+     */
+    public long chunk(long wanted) {
+        long rate = bytesPerSecond;
+        if (rate > 0) {
+            wanted = Math.min(wanted, Math.max(MIN_CHUNK, rate / 8));
+        }
+        return parent == null ? wanted : parent.chunk(wanted);
+    }
+
+    /**
+     * 取得 bytes 个令牌, 不够时等待.
+     *
+     * @param bytes 写入的字节
+     * @throws InterruptedIOException 等待时被中断
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        long rate = bytesPerSecond;
+        if (rate > 0) {
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long elapsed = Math.min(now - lastRefill, 1000000000L); //最多积攒一秒
+                available = Math.min(rate, available + elapsed * rate / 1000000000L);
+                lastRefill = now;
+                available -= bytes;
+                waitNanos = available < 0 ? -available * 1000000000L / rate : 0;
+            }
+            if (waitNanos > 0) {
+                try {
+                    Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("rate limit wait interrupted");
+                }
+            }
+        }
+        if (parent != null) {
+            parent.acquire(bytes);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.callanna.rxload.file;
+
+/**
+ * 一个下载工作单元, 对应记录文件中的一个槽位.
+ * <p>
+ * position 为下一个要写入的字节, end 为最后一个字节(包含).
+ * 当 position > end 时该单元已下载完成.
+ */
+public class Segment {
+    final int slot;
+    private final long origin; //开始统计进度的位置
+    private volatile long position;
+    private volatile long end;
+
+    Segment(int slot, long position, long end) {
+        this.slot = slot;
+        this.origin = position;
+        this.position = position;
+        this.end = end;
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public long end() {
+        return end;
+    }
+
+    /**
+     * 还剩多少字节没有下载
+     *
+     * @return 剩余的字节
+     */
+    public long remaining() {
+        long remaining = end - position + 1;
+        return remaining > 0 ? remaining : 0;
+    }
+
+    /**
+     * 这个单元创建之后写入的字节, 切分出去的部分和超过 end 的重复写入不算在内.
+     * 退回到创建之前的位置时为负数.
+     */
+    long done() {
+        return Math.min(position, end + 1) - origin;
+    }
+
+    public boolean finished() {
+        return position > end;
+    }
+
+    synchronized void advance(long length) {
+        position += length;
+    }
+
+    /**
+     * 退回到之前的位置重新下载, 块摘要不对时使用.
+     */
+    synchronized void rewind(long position) {
+        if (position < this.position) {
+            this.position = position;
+        }
+    }
+
+    /**
+     * 把剩余部分的后一半切分出来, 交给空闲的连接下载.
+     * 正在写入的线程可能已经读到旧的 end, 多写的部分与新单元重叠,
+     * 内容相同, 不影响文件的正确性.
+     *
+     * @param slot    新单元使用的槽位
+     * @param minSize 切分后每一半的最小长度
+     * @param align   切分位置对齐到它的整数倍, 使分块摘要的每一块只属于一个单元
+     * @return 切分出来的新单元, 剩余太少时返回null
+     */
+    synchronized Segment split(int slot, long minSize, long align) {
+        long middle = middle(minSize, align);
+        if (middle == -1) {
+            return null;
+        }
+        Segment tail = new Segment(slot, middle, end);
+        end = middle - 1;
+        return tail;
+    }
+
+    /**
+     * 是否可以切分, 和 {@link #split(int, long, long)} 的判断相同
+     */
+    synchronized boolean splittable(long minSize, long align) {
+        return middle(minSize, align) != -1;
+    }
+
+    /**
+     * @return 切分的位置, 不能切分时返回-1
+     */
+    private long middle(long minSize, long align) {
+        long remaining = end - position + 1;
+        if (remaining < 2 * minSize) {
+            return -1;
+        }
+        long middle = position + remaining / 2;
+        if (align > 1) {
+            middle -= middle % align;
+            if (middle <= position) {
+                middle += align;
+            }
+            if (middle > end) {
+                return -1;
+            }
+        }
+        return middle;
+    }
+
+    @Override
+    public String toString() {
+        return "Segment[" + slot + "]: " + position + "-" + end;
+    }
+}
@@ -0,0 +1,125 @@
+package com.callanna.rxload.file;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * 一个连接写入的数据的摘要计算, 每个连接一个.
+ * <p>
+ * 写入的数据交给整个文件的 {@link FileVerifier}, 同时按分块清单计算每一块的摘要,
+ * 块写完时立即比较. 从块中间开始(断点恢复)时先从文件读回块的前半部分.
+ * 也可以当作 OutputStream 使用, 写入的数据按顺序接在后面.
+ */
+class SegmentHasher extends OutputStream {
+    private final DigestSpec spec;
+    private final FileVerifier verifier;
+    private final MessageDigest blockDigest;
+    private final long blockSize;
+    private final long totalSize;
+    private long position;
+    private long limit = Long.MAX_VALUE;
+    private long badBlock = -1;
+
+    /**
+     * @param verifier  整个文件的摘要, 没有时为null
+     * @param channel   下载文件, 用于读回块的前半部分
+     * @param position  开始写入的位置
+     * @param totalSize 文件长度, 未知时为-1
+     */
+    SegmentHasher(DigestSpec spec, FileVerifier verifier, FileChannel channel,
+                  long position, long totalSize) throws IOException {
+        this.spec = spec;
+        this.verifier = verifier;
+        this.position = position;
+        this.totalSize = totalSize > 0 ? totalSize : Long.MAX_VALUE;
+        if (spec.hasBlocks()) {
+            blockSize = spec.getBlockSize();
+            blockDigest = spec.newDigest();
+            long blockStart = position - position % blockSize;
+            if (blockStart < position) {
+                FileVerifier.readBack(channel, blockDigest,
+                        ByteBuffer.allocate((int) Math.min(position - blockStart, 64 * 1024)),
+                        blockStart, position);
+            }
+        } else {
+            blockSize = 0;
+            blockDigest = null;
+        }
+    }
+
+    /**
+     * 块摘要只计算到这里, 之后的数据属于切分出去的单元
+     *
+     * @param limit 结束位置(不含)
+     */
+    void limit(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return 第一个摘要不对的块的起始位置, 都正确时返回-1
+     */
+    long badBlock() {
+        return badBlock;
+    }
+
+    /**
+     * 数据已经写入文件
+     *
+     * @param data 写入的数据, 不会改变它的 position
+     */
+    void update(ByteBuffer data) throws IOException {
+        if (blockDigest != null) {
+            updateBlocks(data.duplicate());
+        }
+        if (verifier != null) {
+            verifier.written(position, data);
+        }
+        position += data.remaining();
+    }
+
+    /**
+     * 数据结束, 长度未知时最后一块不满也要比较.
+     */
+    void finish() {
+        if (blockDigest != null && position % blockSize != 0 && position != totalSize) {
+            checkBlock(position - position % blockSize);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        update(ByteBuffer.wrap(b, off, len));
+    }
+
+    private void updateBlocks(ByteBuffer data) {
+        long at = position;
+        int end = data.limit();
+        while (data.hasRemaining() && at < limit) {
+            long blockStart = at - at % blockSize;
+            long blockEnd = Math.min(blockStart + blockSize, totalSize);
+            int length = (int) Math.min(data.remaining(), Math.min(blockEnd, limit) - at);
+            data.limit(data.position() + length);
+            blockDigest.update(data);
+            data.limit(end);
+            at += length;
+            if (at == blockEnd) {
+                checkBlock(blockStart);
+            }
+        }
+    }
+
+    private void checkBlock(long blockStart) {
+        if (!spec.blockMatches(blockStart / blockSize, blockDigest.digest()) && badBlock == -1) {
+            badBlock = blockStart;
+        }
+    }
+}
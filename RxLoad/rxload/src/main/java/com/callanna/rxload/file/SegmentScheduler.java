@@ -0,0 +1,421 @@
+package com.callanna.rxload.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.annotations.NonNull;
+import io.reactivex.functions.Predicate;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+
+import static com.callanna.rxload.Utils.log;
+import static com.callanna.rxload.file.FileHelper.EACH_RECORD_SIZE;
+import static okhttp3.internal.Util.closeQuietly;
+
+/**
+ * 分段下载调度器.
+ * <p>
+ * 文件被切分成很多小的工作单元, 空闲的连接从队列中取下一个单元下载;
+ * 队列为空时, 把正在下载中剩余最多的单元切成两半, 让所有连接一直忙到最后.
+ * 每个单元的进度保存在记录文件对应的槽位中, 见 {@link FileHelper}.
+ * <p>
+ * 进度按 {@link CheckpointPolicy} 批量保存: 先同步下载文件的数据, 再写入并同步进度,
+ * 所以记录文件中的进度永远不会超过已经落盘的数据. 下载完成的槽位要等下一次保存之后才能复用.
+ * <p>
+ * 有 {@link DigestSpec} 时每个连接边写边计算摘要, 见 {@link FileVerifier} 和 {@link SegmentHasher};
+ * 有分块清单时切分位置对齐到块的边界.
+ * <p>
+ * 超过当前连接数的连接暂停在 {@link #park(int)} 上, 连接数增加或者有单元结束时才被唤醒, 不轮询.
+ */
+public class SegmentScheduler implements Closeable {
+    private static final long MIN_SPLIT_SIZE = 128 * 1024L;
+
+    private final RandomAccessFile record;
+    private final FileChannel recordChannel;
+    private final MappedByteBuffer recordBuffer;
+    private final RandomAccessFile save;
+    private final FileChannel saveChannel;
+    private final long totalSize;
+    private final CheckpointPolicy policy;
+    private final ConnectionTuner tuner;
+    private final DigestSpec digestSpec;
+    private final FileVerifier verifier;
+    private final long align;
+
+    private final LinkedList<Segment> pending = new LinkedList<>();
+    private final List<Segment> running = new ArrayList<>();
+    private final List<Segment> retired = new ArrayList<>();
+    private final LinkedList<Integer> freeSlots = new LinkedList<>();
+
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    private final AtomicLong unsavedBytes = new AtomicLong();
+    private final Progress progress;
+    private volatile long lastCheckpoint = System.currentTimeMillis();
+    //暂停的连接可能可以继续的通知, 不在持有锁的时候发送
+    private final Subject<Integer> wakeups = PublishSubject.<Integer>create().toSerialized();
+
+    SegmentScheduler(RandomAccessFile record, MappedByteBuffer recordBuffer,
+                     RandomAccessFile save, CheckpointPolicy policy, ConnectionTuner tuner,
+                     DigestSpec digestSpec) throws IOException {
+        this.policy = policy;
+        this.tuner = tuner;
+        this.record = record;
+        this.recordChannel = record.getChannel();
+        this.recordBuffer = recordBuffer;
+        this.save = save;
+        this.saveChannel = save.getChannel();
+        this.totalSize = recordBuffer.getLong(0);
+
+        int slotCount = (int) recordBuffer.getLong(8);
+        for (int i = 0; i < slotCount; i++) {
+            long start = recordBuffer.getLong(offset(i));
+            long end = recordBuffer.getLong(offset(i) + 8);
+            if (start <= end) {
+                pending.add(new Segment(i, start, end));
+            } else {
+                freeSlots.add(i);
+            }
+        }
+        long residue = 0;
+        for (Segment each : pending) {
+            residue += each.remaining();
+        }
+        progress = new Progress(totalSize - residue);
+        for (Segment each : pending) {
+            progress.track(each);
+        }
+        tuner.start(progress.downloaded());
+        log("SegmentScheduler: pending " + pending.size() + ", finished " + freeSlots.size());
+
+        this.digestSpec = digestSpec;
+        this.align = digestSpec != null && digestSpec.hasBlocks() ? digestSpec.getBlockSize() : 0;
+        if (digestSpec != null && digestSpec.hasFileDigest()) {
+            verifier = new FileVerifier(digestSpec, saveChannel, totalSize);
+            //没有在排队的部分就是之前已经下载完成的
+            List<Segment> sorted = new ArrayList<>(pending);
+            Collections.sort(sorted, new Comparator<Segment>() {
+                @Override
+                public int compare(Segment o1, Segment o2) {
+                    return o1.position() < o2.position() ? -1 : (o1.position() == o2.position() ? 0 : 1);
+                }
+            });
+            long done = 0;
+            for (Segment each : sorted) {
+                verifier.done(done, each.position());
+                done = Math.max(done, each.end() + 1);
+            }
+            verifier.done(done, totalSize);
+        } else {
+            verifier = null;
+        }
+    }
+
+    public long totalSize() {
+        return totalSize;
+    }
+
+    public FileChannel channel() {
+        return saveChannel;
+    }
+
+    /**
+     * 连接是否可以继续工作, 编号超过当前连接数的连接暂停.
+     * 没有连接在下载时都可以工作, 否则连接数降低之后可能没有连接再推进进度, 连接数也不会再增加.
+     *
+     * @param index 连接编号
+     */
+    public synchronized boolean allowed(int index) {
+        return index < tuner.connections() || running.isEmpty();
+    }
+
+    public int connections() {
+        return tuner.connections();
+    }
+
+    /**
+     * 已经下载的字节, 不加锁
+     */
+    public long downloaded() {
+        return progress.downloaded();
+    }
+
+    /**
+     * 是否还有可以分配的工作
+     */
+    public synchronized boolean hasWork() {
+        return !pending.isEmpty() || canSteal();
+    }
+
+    /**
+     * 取下一个工作单元, 没有排队的单元时切分最大的下载中单元.
+     * 只缺空闲槽位时先保存一次进度, 让完成的槽位可以复用.
+     *
+     * @return 工作单元, 没有可做的工作时返回null
+     * @throws IOException
+     */
+    public Segment acquire() throws IOException {
+        Segment next = take();
+        if (next == null && waitingForSlot()) {
+            force();
+            next = take();
+        }
+        return next;
+    }
+
+    private synchronized Segment take() {
+        Segment next = pending.poll();
+        if (next == null) {
+            next = steal();
+        }
+        if (next != null) {
+            running.add(next);
+        }
+        return next;
+    }
+
+    private synchronized boolean waitingForSlot() {
+        return freeSlots.isEmpty() && !retired.isEmpty() && canSteal();
+    }
+
+    /**
+     * 单元下载结束, 释放它的槽位; 没有下载完的单元放回队列.
+     * 之后可能没有连接在下载, 或者没有工作了, 唤醒暂停的连接检查一次.
+     *
+     * @param segment 工作单元
+     */
+    public void complete(Segment segment) {
+        if (release(segment)) {
+            wakeups.onNext(segment.slot);
+        }
+    }
+
+    private synchronized boolean release(Segment segment) {
+        if (!running.remove(segment)) {
+            return false;
+        }
+        if (segment.finished()) {
+            retired.add(segment);
+        } else {
+            pending.addFirst(segment);
+        }
+        return true;
+    }
+
+    /**
+     * 暂停一个连接, 直到它可以继续工作或者已经没有工作了.
+     * 连接数增加或者有单元结束时才检查, 先订阅通知再检查一次, 两者之间的变化不会漏掉.
+     *
+     * @param index 连接编号
+     * @return 在发送通知的线程上完成
+     */
+    public Completable park(final int index) {
+        return Observable.merge(wakeups, Observable.just(-1))
+                .filter(new Predicate<Integer>() {
+                    @Override
+                    public boolean test(@NonNull Integer signal) throws Exception {
+                        return allowed(index) || !hasWork();
+                    }
+                })
+                .firstElement()
+                .ignoreElement();
+    }
+
+    /**
+     * 写入数据后更新单元进度, 达到保存策略时保存一次.
+     *
+     * @param segment 工作单元
+     * @param length  写入的字节
+     * @throws IOException
+     */
+    public void advance(Segment segment, long length) throws IOException {
+        segment.advance(length);
+        if (tuner.sample(progress)) {
+            wakeups.onNext(-1);
+        }
+        long unsaved = unsavedBytes.addAndGet(length);
+        if (policy.due(unsaved, System.currentTimeMillis() - lastCheckpoint)
+                && checkpointLock.tryLock()) {
+            try {
+                checkpoint();
+            } finally {
+                checkpointLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 为开始下载的单元创建摘要计算
+     *
+     * @return 没有 DigestSpec 时返回null
+     * @throws IOException
+     */
+    SegmentHasher hasher(Segment segment) throws IOException {
+        if (digestSpec == null) {
+            return null;
+        }
+        return new SegmentHasher(digestSpec, verifier, saveChannel, segment.position(), totalSize);
+    }
+
+    /**
+     * 块摘要不对, 单元退回到块的开始位置重新下载.
+     *
+     * @param blockStart 块的起始位置
+     * @throws IOException
+     */
+    void reject(Segment segment, long blockStart) throws IOException {
+        checkpointLock.lock();
+        try {
+            segment.rewind(blockStart);
+            if (verifier != null) {
+                verifier.invalidate();
+            }
+            recordBuffer.putLong(offset(segment.slot), segment.position());
+        } finally {
+            checkpointLock.unlock();
+        }
+        log("block digest mismatch: " + segment);
+    }
+
+    /**
+     * 全部下载完成后校验整个文件的摘要, 还没有下载完成时不校验.
+     *
+     * @throws DigestMismatchException 摘要不一致
+     */
+    public void verify() throws IOException {
+        if (verifier != null && residue() == 0) {
+            verifier.verify();
+        }
+    }
+
+    /**
+     * 立即保存一次进度, 暂停和下载完成时调用.
+     *
+     * @throws IOException
+     */
+    public void force() throws IOException {
+        checkpointLock.lock();
+        try {
+            checkpoint();
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * 还剩多少字节没有下载, 需要遍历所有单元, 只用于判断是否完成; 显示进度使用 {@link #downloaded()}
+     *
+     * @return 剩余的字节
+     */
+    public synchronized long residue() {
+        long residue = 0;
+        for (Segment each : pending) {
+            residue += each.remaining();
+        }
+        for (Segment each : running) {
+            residue += each.remaining();
+        }
+        return residue;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            force();
+        } finally {
+            closeQuietly(recordChannel);
+            closeQuietly(record);
+            closeQuietly(saveChannel);
+            closeQuietly(save);
+        }
+    }
+
+    /**
+     * 先记下每个单元的进度, 再同步数据, 最后写入并同步记录文件.
+     * 进度总是在数据写入之后才前进, 所以记下的进度不会超过已同步的数据.
+     */
+    private void checkpoint() throws IOException {
+        List<Segment> segments;
+        List<Segment> done;
+        synchronized (this) {
+            segments = new ArrayList<>(running.size() + pending.size() + retired.size());
+            segments.addAll(running);
+            segments.addAll(pending);
+            done = new ArrayList<>(retired);
+            segments.addAll(done);
+        }
+        long[] positions = new long[segments.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = segments.get(i).position();
+        }
+        unsavedBytes.set(0);
+        lastCheckpoint = System.currentTimeMillis();
+
+        saveChannel.force(false);
+        for (int i = 0; i < positions.length; i++) {
+            recordBuffer.putLong(offset(segments.get(i).slot), positions[i]);
+        }
+        recordBuffer.force();
+
+        synchronized (this) {
+            for (Segment each : done) {
+                retired.remove(each);
+                freeSlots.add(each.slot);
+                progress.fold(each);
+            }
+        }
+    }
+
+    /**
+     * 是否有可以切分的单元, 完成的槽位保存之后可以复用, 也算作空闲
+     */
+    private boolean canSteal() {
+        Segment largest = largest();
+        return largest != null && (!freeSlots.isEmpty() || !retired.isEmpty())
+                && largest.splittable(MIN_SPLIT_SIZE, align);
+    }
+
+    private Segment largest() {
+        Segment largest = null;
+        for (Segment each : running) {
+            if (largest == null || each.remaining() > largest.remaining()) {
+                largest = each;
+            }
+        }
+        return largest;
+    }
+
+    private Segment steal() {
+        Segment largest = largest();
+        if (largest == null || freeSlots.isEmpty()) {
+            return null;
+        }
+        Segment tail = largest.split(freeSlots.peek(), MIN_SPLIT_SIZE, align);
+        if (tail == null) {
+            return null;
+        }
+        freeSlots.poll();
+        progress.track(tail);
+        //先写新的槽位, 再缩短原来的单元, 中途崩溃只会重复下载一段相同的数据
+        recordBuffer.putLong(offset(tail.slot), tail.position());
+        recordBuffer.putLong(offset(tail.slot) + 8, tail.end());
+        recordBuffer.putLong(offset(largest.slot) + 8, largest.end());
+        log("steal: " + largest + " -> " + tail);
+        return tail;
+    }
+
+    private static int offset(int slot) {
+        return (slot + 1) * EACH_RECORD_SIZE;
+    }
+}
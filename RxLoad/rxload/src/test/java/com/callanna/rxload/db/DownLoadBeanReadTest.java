@@ -0,0 +1,82 @@
+package com.callanna.rxload.db;
+
+import android.database.Cursor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link DownLoadBean#read(Cursor)} 缓存的列位置只对同一个查询结果有效,
+ * 换成列的顺序或者列数不同的查询结果时重新查找.
+ */
+public class DownLoadBeanReadTest {
+
+    @Test
+    public void rebuildsColumnsForDifferentProjection() {
+        Cursor first = TestCursors.row(columns(1, "http://example.com/a", 100, false, false));
+        Cursor reordered = TestCursors.row(columns(2, "http://example.com/b", 200, true, false));
+        Cursor extra = TestCursors.row(columns(3, "http://example.com/c", 300, false, true));
+
+        assertRow(DownLoadBean.read(first), 1, "http://example.com/a", 100);
+        assertRow(DownLoadBean.read(reordered), 2, "http://example.com/b", 200);
+        assertRow(DownLoadBean.read(extra), 3, "http://example.com/c", 300);
+        //回到第一个查询结果, 列位置也要换回来
+        assertRow(DownLoadBean.read(first), 1, "http://example.com/a", 100);
+    }
+
+    @Test
+    public void readsEveryRowOfSameCursor() {
+        Cursor cursor = TestCursors.row(columns(4, "http://example.com/d", 400, true, false));
+        for (int i = 0; i < 3; i++) {
+            assertRow(DownLoadBean.read(cursor), 4, "http://example.com/d", 400);
+        }
+    }
+
+    private static void assertRow(DownLoadBean bean, int id, String url, long total) {
+        assertEquals(id, bean.getId());
+        assertEquals(url, bean.getUrl());
+        assertEquals(url.substring(url.lastIndexOf('/') + 1), bean.getSaveName());
+        assertEquals(total, bean.getStatus().getTotalSize());
+        assertEquals(total / 2, bean.getStatus().getDownloadSize());
+        assertEquals(DownLoadStatus.PAUSED, bean.getStatus().getStatus());
+        assertEquals("\"" + id + "\"", bean.getEtag());
+    }
+
+    /**
+     * tb_download 的一行, 列名和值交替. reversed 时列的顺序相反, extra 时开头多一列
+     */
+    private static Object[] columns(int id, String url, long total, boolean reversed, boolean extra) {
+        List<Object[]> pairs = new ArrayList<>();
+        pairs.add(new Object[]{Db.DownLoadTable.COLUMN_ID, id});
+        pairs.add(new Object[]{Db.DownLoadTable.COLUMN_URL, url});
+        pairs.add(new Object[]{Db.DownLoadTable.COLUMN_SAVE_NAME, url.substring(url.lastIndexOf('/') + 1)});
+        pairs.add(new Object[]{Db.DownLoadTable.COLUMN_SAVE_PATH, ""});
+        pairs.add(new Object[]{Db.DownLoadTable.COLUMN_TEMP_PATH, ""});
+        pairs.add(new Object[]{Db.DownLoadTable.COLUMN_LMDF_PATH, ""});
+        pairs.add(new Object[]{Db.DownLoadTable.COLUMN_LastModify, ""});
+        pairs.add(new Object[]{Db.DownLoadTable.COLUMN_TOTAL_SIZE, total});
+        pairs.add(new Object[]{Db.DownLoadTable.COLUMN_DOWNLOAD_SIZE, total / 2});
+        pairs.add(new Object[]{Db.DownLoadTable.COLUMN_RANGE, Db.BOOLEAN_TRUE});
+        pairs.add(new Object[]{Db.DownLoadTable.COLUMN_CHENGED, Db.BOOLEAN_FALSE});
+        pairs.add(new Object[]{Db.DownLoadTable.COLUMN_ETAG, "\"" + id + "\""});
+        pairs.add(new Object[]{Db.DownLoadTable.COLUMN_DIGEST, ""});
+        pairs.add(new Object[]{Db.DownLoadTable.COLUMN_DOWNLOAD_FLAG, DownLoadStatus.PAUSED});
+        if (reversed) {
+            Collections.reverse(pairs);
+        }
+        if (extra) {
+            pairs.add(0, new Object[]{"task_count", 7});
+        }
+        Object[] columns = new Object[pairs.size() * 2];
+        for (int i = 0; i < pairs.size(); i++) {
+            columns[i * 2] = pairs.get(i)[0];
+            columns[i * 2 + 1] = pairs.get(i)[1];
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,57 @@
+package com.callanna.rxload.db;
+
+import android.database.Cursor;
+
+import com.callanna.rxload.data.LoadInfo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 超过 int 范围的长度从数据库的一行读出, 到 LoadInfo 都不会截断.
+ */
+public class LongSizeTest {
+    private static final long GB = 1024L * 1024 * 1024;
+
+    @Test
+    public void rowToLoadInfoKeepsLongSizes() throws Exception {
+        long total = 5 * GB + 3;
+        long downloaded = 3 * GB + 7;
+        Cursor cursor = TestCursors.row(
+                Db.DownLoadTable.COLUMN_ID, 42,
+                Db.DownLoadTable.COLUMN_URL, "http://example.com/big.iso",
+                Db.DownLoadTable.COLUMN_SAVE_NAME, "big.iso",
+                Db.DownLoadTable.COLUMN_SAVE_PATH, "/sdcard/Download/big.iso",
+                Db.DownLoadTable.COLUMN_TEMP_PATH, "",
+                Db.DownLoadTable.COLUMN_LMDF_PATH, "",
+                Db.DownLoadTable.COLUMN_LastModify, "",
+                Db.DownLoadTable.COLUMN_TOTAL_SIZE, total,
+                Db.DownLoadTable.COLUMN_DOWNLOAD_SIZE, downloaded,
+                Db.DownLoadTable.COLUMN_RANGE, Db.BOOLEAN_TRUE,
+                Db.DownLoadTable.COLUMN_CHENGED, Db.BOOLEAN_FALSE,
+                Db.DownLoadTable.COLUMN_ETAG, "\"abc\"",
+                Db.DownLoadTable.COLUMN_DIGEST, "",
+                Db.DownLoadTable.COLUMN_DOWNLOAD_FLAG, DownLoadStatus.PAUSED);
+
+        DownLoadBean bean = DownLoadBean.MAPPER.apply(cursor);
+        assertEquals(total, bean.getStatus().getTotalSize());
+        assertEquals(downloaded, bean.getStatus().getDownloadSize());
+        assertEquals(60, bean.getStatus().getPercentNumber());
+
+        LoadInfo info = bean.toLoadInfo();
+        assertEquals(42, info.getId());
+        assertEquals(DownLoadStatus.PAUSED, info.getStatus());
+        assertEquals(total, info.getTotalSize());
+        assertEquals(downloaded, info.getDownloadSize());
+        assertEquals(60, info.getPercentNumber());
+    }
+
+    @Test
+    public void statusKeepsLongSizes() {
+        DownLoadStatus status = new DownLoadStatus(DownLoadStatus.STARTED, 2 * GB, 4 * GB + 1);
+        status.setDownloadSize(status.getDownloadSize() + 3 * GB);
+        assertEquals(5 * GB, status.getDownloadSize());
+        assertEquals(4 * GB + 1, status.getTotalSize());
+    }
+}
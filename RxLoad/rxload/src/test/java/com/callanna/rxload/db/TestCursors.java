@@ -0,0 +1,52 @@
+package com.callanna.rxload.db;
+
+import android.database.Cursor;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+/**
+ * 不依赖 Android 的查询结果, 用来测试从数据库的一行读出 DownLoadBean.
+ */
+final class TestCursors {
+    private TestCursors() {
+    }
+
+    /**
+     * 只有一行的查询结果, 参数是列名和值交替
+     */
+    static Cursor row(Object... columns) {
+        final String[] names = new String[columns.length / 2];
+        final Object[] values = new Object[names.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = (String) columns[i * 2];
+            values[i] = columns[i * 2 + 1];
+        }
+        return (Cursor) Proxy.newProxyInstance(Cursor.class.getClassLoader(), new Class<?>[]{Cursor.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getColumnNames")) {
+                            return names;
+                        } else if (name.equals("getColumnIndexOrThrow") || name.equals("getColumnIndex")) {
+                            int index = Arrays.asList(names).indexOf(args[0]);
+                            if (index < 0 && name.equals("getColumnIndexOrThrow")) {
+                                throw new IllegalArgumentException("no column " + args[0]);
+                            }
+                            return index;
+                        } else if (name.equals("getLong")) {
+                            return ((Number) values[(Integer) args[0]]).longValue();
+                        } else if (name.equals("getInt")) {
+                            return ((Number) values[(Integer) args[0]]).intValue();
+                        } else if (name.equals("getString")) {
+                            Object value = values[(Integer) args[0]];
+                            return value == null ? null : String.valueOf(value);
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+}
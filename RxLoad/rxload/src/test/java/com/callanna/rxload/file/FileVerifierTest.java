@@ -0,0 +1,113 @@
+package com.callanna.rxload.file;
+
+import com.callanna.rxload.Utils;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import io.reactivex.Completable;
+import io.reactivex.CompletableEmitter;
+import io.reactivex.CompletableOnSubscribe;
+import okhttp3.ResponseBody;
+import okio.ByteString;
+
+import static org.junit.Assert.fail;
+
+/**
+ * 多个连接同时写入时整个文件的摘要: 计算在锁外进行, 结果和顺序计算的一样.
+ */
+public class FileVerifierTest {
+    private static final int SIZE = 16 * 1024 * 1024 + 4321;
+    private static final int CONNECTIONS = 4;
+    private static final String LAST_MODIFY = "Thu, 01 Jan 2015 00:00:00 GMT";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FileHelper fileHelper = new FileHelper();
+    private byte[] payload;
+
+    @Before
+    public void setUp() {
+        Utils.setDebug(false);
+        payload = new byte[SIZE];
+        new Random(1).nextBytes(payload);
+    }
+
+    @Test
+    public void concurrentWritesMatchDigest() throws Exception {
+        download(DigestSpec.of(DigestSpec.MD5, ByteString.of(payload).md5().hex()));
+    }
+
+    @Test
+    public void concurrentWritesDetectMismatch() throws Exception {
+        byte[] other = payload.clone();
+        other[SIZE / 2] ^= 1;
+        try {
+            download(DigestSpec.of(DigestSpec.MD5, ByteString.of(other).md5().hex()));
+            fail("digest mismatch not detected");
+        } catch (DigestMismatchException expected) {
+        }
+    }
+
+    /**
+     * 几个线程各自取单元写入, 然后校验整个文件
+     */
+    private void download(DigestSpec spec) throws Exception {
+        File save = new File(folder.getRoot(), "save");
+        File temp = new File(folder.getRoot(), "save.tmp");
+        fileHelper.prepareDownload(new File(folder.getRoot(), "save.lmf"), temp, save, SIZE, LAST_MODIFY, 0);
+        final SegmentScheduler scheduler = fileHelper.openScheduler(temp, save, spec);
+        ExecutorService pool = Executors.newFixedThreadPool(CONNECTIONS);
+        try {
+            List<Future<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < CONNECTIONS; i++) {
+                final int writeMode = i % 2 == 0 ? FileHelper.WRITE_BUFFERED : FileHelper.WRITE_DIRECT;
+                workers.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Segment segment;
+                        while ((segment = scheduler.acquire()) != null) {
+                            try {
+                                save(scheduler, segment, writeMode);
+                            } finally {
+                                scheduler.complete(segment);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> each : workers) {
+                each.get();
+            }
+            scheduler.verify();
+        } finally {
+            pool.shutdown();
+            scheduler.close();
+        }
+    }
+
+    private void save(final SegmentScheduler scheduler, final Segment segment, final int writeMode) {
+        final ResponseBody body = ResponseBody.create(null,
+                ByteString.of(payload, (int) segment.position(), (int) segment.remaining()).toByteArray());
+        final RateLimiter limiter = new RateLimiter(null);
+        Completable.create(new CompletableOnSubscribe() {
+            @Override
+            public void subscribe(CompletableEmitter emitter) throws Exception {
+                fileHelper.saveFile(emitter, scheduler, segment, body, writeMode, limiter);
+            }
+        }).blockingAwait();
+    }
+}
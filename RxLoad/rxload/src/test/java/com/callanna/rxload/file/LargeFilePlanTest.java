@@ -0,0 +1,174 @@
+package com.callanna.rxload.file;
+
+import com.callanna.rxload.Utils;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import io.reactivex.Completable;
+import io.reactivex.CompletableEmitter;
+import io.reactivex.CompletableOnSubscribe;
+import okhttp3.ResponseBody;
+
+import static com.callanna.rxload.file.FileHelper.EACH_RECORD_SIZE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 超过 2 GB, 4 GB 和几百 GB 的文件的分段计划, 用稀疏文件, 不占用实际的磁盘空间.
+ */
+public class LargeFilePlanTest {
+    private static final long GB = 1024L * 1024 * 1024;
+    private static final long SEGMENT_SIZE = 1024 * 1024L;
+    private static final int MAX_SEGMENTS = 4096;
+    private static final String LAST_MODIFY = "Thu, 01 Jan 2015 00:00:00 GMT";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FileHelper fileHelper = new FileHelper();
+    private File save;
+    private File temp;
+    private File lmf;
+
+    @Before
+    public void setUp() {
+        Utils.setDebug(false);
+        save = new File(folder.getRoot(), "save");
+        temp = new File(folder.getRoot(), "save.tmp");
+        lmf = new File(folder.getRoot(), "save.lmf");
+    }
+
+    @Test
+    public void planOver2GB() throws Exception {
+        plan(2 * GB + 12345);
+    }
+
+    @Test
+    public void planOver4GB() throws Exception {
+        plan(4 * GB + 54321);
+    }
+
+    @Test
+    public void planHundredsOfGB() throws Exception {
+        plan(300 * GB + 1);
+    }
+
+    /**
+     * 写入 4 GB 之后的最后一个单元, 重新打开之后进度和数据都还在
+     */
+    @Test
+    public void resumeOver4GB() throws Exception {
+        long size = 5 * GB + 777;
+        List<long[]> planned = plan(size);
+        long[] last = planned.get(planned.size() - 1);
+        assertTrue(last[0] > 4 * GB);
+
+        SegmentScheduler scheduler = fileHelper.openScheduler(temp, save, null);
+        Segment tail = null;
+        List<Segment> acquired = new ArrayList<>();
+        for (int i = 0; i < planned.size(); i++) {
+            Segment each = scheduler.acquire();
+            acquired.add(each);
+            if (each.position() == last[0]) {
+                tail = each;
+            }
+        }
+        byte[] data = new byte[(int) (last[1] - last[0] + 1)];
+        new Random(1).nextBytes(data);
+        save(scheduler, tail, data);
+        assertTrue(tail.finished());
+        for (Segment each : acquired) {
+            scheduler.complete(each);
+        }
+        scheduler.close();
+
+        //记录文件没有损坏, 不会重新计划
+        fileHelper.prepareDownload(lmf, temp, save, size, LAST_MODIFY, 0);
+        scheduler = fileHelper.openScheduler(temp, save, null);
+        try {
+            assertEquals(data.length, scheduler.downloaded());
+            assertEquals(size - data.length, scheduler.residue());
+        } finally {
+            scheduler.close();
+        }
+        byte[] written = new byte[data.length];
+        RandomAccessFile file = new RandomAccessFile(save, "r");
+        try {
+            file.seek(last[0]);
+            file.readFully(written);
+        } finally {
+            file.close();
+        }
+        assertArrayEquals(data, written);
+    }
+
+    /**
+     * 计划一个稀疏文件, 检查记录文件中的单元覆盖整个文件, 没有重叠, 每个单元不超过计划的大小
+     *
+     * @return 按位置排列的单元 [start, end]
+     */
+    private List<long[]> plan(long size) throws Exception {
+        fileHelper.prepareDownload(lmf, temp, save, size, LAST_MODIFY, 0);
+        assertEquals(size, save.length());
+
+        List<long[]> segments = new ArrayList<>();
+        RandomAccessFile record = new RandomAccessFile(temp, "r");
+        try {
+            assertEquals(size, record.readLong());
+            long slots = record.readLong();
+            assertEquals((slots + 1) * EACH_RECORD_SIZE, record.length());
+            for (int i = 0; i < slots; i++) {
+                long start = record.readLong();
+                long end = record.readLong();
+                if (start <= end) {
+                    segments.add(new long[]{start, end});
+                }
+            }
+        } finally {
+            record.close();
+        }
+
+        long eachSize = Math.max(SEGMENT_SIZE, (size + MAX_SEGMENTS - 1) / MAX_SEGMENTS);
+        assertTrue(segments.size() <= MAX_SEGMENTS);
+        long next = 0;
+        for (long[] each : segments) {
+            assertEquals(next, each[0]);
+            assertTrue(each[1] >= each[0]);
+            assertTrue(each[1] - each[0] + 1 <= eachSize);
+            next = each[1] + 1;
+        }
+        assertEquals(size, next);
+
+        SegmentScheduler scheduler = fileHelper.openScheduler(temp, save, null);
+        try {
+            assertEquals(size, scheduler.totalSize());
+            assertEquals(size, scheduler.residue());
+            assertEquals(0, scheduler.downloaded());
+            assertTrue(scheduler.hasWork());
+        } finally {
+            scheduler.close();
+        }
+        return segments;
+    }
+
+    private void save(final SegmentScheduler scheduler, final Segment segment, byte[] data) {
+        final ResponseBody body = ResponseBody.create(null, data);
+        final RateLimiter limiter = new RateLimiter(null);
+        Completable.create(new CompletableOnSubscribe() {
+            @Override
+            public void subscribe(CompletableEmitter emitter) throws Exception {
+                fileHelper.saveFile(emitter, scheduler, segment, body, FileHelper.WRITE_BUFFERED, limiter);
+            }
+        }).blockingAwait();
+    }
+}
@@ -0,0 +1,69 @@
+package com.callanna.rxload.file;
+
+import com.callanna.rxload.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import io.reactivex.observers.TestObserver;
+
+/**
+ * 暂停的连接由调度器通知唤醒, 不轮询.
+ */
+public class SegmentSchedulerParkTest {
+    private static final long SIZE = 4 * 1024 * 1024L;
+    private static final int PARKED = 10; //超过最大连接数的编号
+    private static final String LAST_MODIFY = "Thu, 01 Jan 2015 00:00:00 GMT";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SegmentScheduler scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setDebug(false);
+        FileHelper fileHelper = new FileHelper();
+        File save = new File(folder.getRoot(), "save");
+        File temp = new File(folder.getRoot(), "save.tmp");
+        fileHelper.prepareDownload(new File(folder.getRoot(), "save.lmf"), temp, save, SIZE, LAST_MODIFY, 0);
+        scheduler = fileHelper.openScheduler(temp, save, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.close();
+    }
+
+    @Test
+    public void allowedConnectionDoesNotPark() {
+        scheduler.park(0).test().assertComplete();
+    }
+
+    @Test
+    public void wakesWhenNoConnectionIsRunning() throws Exception {
+        Segment segment = scheduler.acquire();
+        TestObserver<Void> parked = scheduler.park(PARKED).test();
+        parked.assertNotComplete();
+
+        scheduler.complete(segment);
+        parked.assertComplete();
+    }
+
+    @Test
+    public void staysParkedWhileOthersRun() throws Exception {
+        Segment first = scheduler.acquire();
+        Segment second = scheduler.acquire();
+        TestObserver<Void> parked = scheduler.park(PARKED).test();
+
+        scheduler.complete(first);
+        parked.assertNotComplete();
+        scheduler.complete(second);
+        parked.assertComplete();
+    }
+}
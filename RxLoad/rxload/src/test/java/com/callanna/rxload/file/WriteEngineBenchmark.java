@@ -0,0 +1,209 @@
+package com.callanna.rxload.file;
+
+import com.callanna.rxload.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import io.reactivex.Completable;
+import io.reactivex.CompletableEmitter;
+import io.reactivex.CompletableOnSubscribe;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 分段写入的速度和内存分配: 原来每读 2 KB 映射一次的写法, 和现在按位置写入的两种模式.
+ * <p>
+ * 在 JVM 上运行, 只用来比较, 结果和设备上的会有差别. 每种写法先预热一次.
+ * 默认跳过, 需要时运行 ./gradlew :rxload:testDebugUnitTest -Pbenchmark
+ */
+public class WriteEngineBenchmark {
+    private static final int SIZE = 32 * 1024 * 1024;
+    private static final String LAST_MODIFY = "Thu, 01 Jan 2015 00:00:00 GMT";
+
+    private byte[] payload;
+    private ByteString expected;
+    private File dir;
+
+    @BeforeClass
+    public static void enabled() {
+        assumeTrue("benchmark skipped, run with -Pbenchmark", Boolean.getBoolean("rxload.benchmark"));
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        Utils.setDebug(false);
+        payload = new byte[SIZE];
+        new Random(1).nextBytes(payload);
+        expected = ByteString.of(payload).md5();
+        dir = File.createTempFile("rxload", "bench");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File each : dir.listFiles()) {
+            each.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void compareWriteEngines() throws Exception {
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            run("map per 2 KB chunk", new Engine() {
+                @Override
+                public void write(File save) throws IOException {
+                    legacy(save);
+                }
+            }, report);
+            run("positional, buffered", new Engine() {
+                @Override
+                public void write(File save) throws IOException {
+                    segments(save, FileHelper.WRITE_BUFFERED);
+                }
+            }, report);
+            run("positional, direct", new Engine() {
+                @Override
+                public void write(File save) throws IOException {
+                    segments(save, FileHelper.WRITE_DIRECT);
+                }
+            }, report);
+        }
+    }
+
+    private void run(String name, Engine engine, boolean report) throws IOException {
+        File save = new File(dir, "save");
+        save.delete();
+        System.gc();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        engine.write(save);
+        long nanos = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+        BufferedSource written = Okio.buffer(Okio.source(save));
+        try {
+            assertEquals(name, expected, written.readByteString().md5());
+        } finally {
+            written.close();
+        }
+        if (report) {
+            double mb = SIZE / (1024.0 * 1024.0);
+            System.out.println(String.format("%-22s %8.1f MB/s %10d bytes allocated per MB",
+                    name, mb * 1e9 / nanos, (long) (allocated / mb)));
+        }
+    }
+
+    /**
+     * 原来的写法: 每次读取 2 KB, 为每次读取映射一段文件
+     */
+    private void legacy(File save) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(save, "rws");
+        try {
+            file.setLength(SIZE);
+            FileChannel channel = file.getChannel();
+            InputStream in = body(0, SIZE).byteStream();
+            byte[] buffer = new byte[2048];
+            long start = 0;
+            int readLen;
+            while ((readLen = in.read(buffer)) != -1) {
+                MappedByteBuffer saveBuffer = channel.map(READ_WRITE, start, readLen);
+                saveBuffer.put(buffer, 0, readLen);
+                start += readLen;
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private void segments(File save, final int writeMode) throws IOException {
+        final FileHelper fileHelper = new FileHelper();
+        File temp = new File(dir, "save.tmp");
+        temp.delete();
+        try {
+            fileHelper.prepareDownload(new File(dir, "save.lmf"), temp, save, SIZE, LAST_MODIFY, 0);
+        } catch (java.text.ParseException e) {
+            throw new IOException(e);
+        }
+        final SegmentScheduler scheduler = fileHelper.openScheduler(temp, save, null);
+        final RateLimiter limiter = new RateLimiter(null);
+        try {
+            Segment segment;
+            while ((segment = scheduler.acquire()) != null) {
+                final Segment current = segment;
+                final ResponseBody body = body(current.position(), current.remaining());
+                Completable.create(new CompletableOnSubscribe() {
+                    @Override
+                    public void subscribe(CompletableEmitter emitter) throws Exception {
+                        fileHelper.saveFile(emitter, scheduler, current, body, writeMode, limiter);
+                    }
+                }).blockingAwait();
+                scheduler.complete(current);
+            }
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    /**
+     * 每次最多返回 8 KB, 和从网络读取时一样
+     */
+    private ResponseBody body(final long offset, final long length) {
+        Source source = new Source() {
+            private long position = offset;
+
+            @Override
+            public long read(Buffer sink, long byteCount) throws IOException {
+                long end = offset + length;
+                if (position == end) {
+                    return -1;
+                }
+                int read = (int) Math.min(Math.min(byteCount, end - position), 8192);
+                sink.write(payload, (int) position, read);
+                position += read;
+                return read;
+            }
+
+            @Override
+            public Timeout timeout() {
+                return Timeout.NONE;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        return ResponseBody.create(null, length, Okio.buffer(source));
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private interface Engine {
+        void write(File save) throws IOException;
+    }
+}